@@ -0,0 +1,39 @@
+package org.happy.esw;
+
+/**
+ * 滑动窗口的动态容量来源，例如多个节点共享同一个下游并发上限时，由集群协调各节点的窗口容量。
+ * <p>
+ * 窗口的实际容量为构造时指定的windowCapacity与{@link #capacity()}中的较小值。
+ *
+ * @author huangzhonghui
+ */
+public interface CapacityProvider {
+
+  /**
+   * 当前允许占用的窗口容量，该方法在每次put时调用，须保证O(1)且不阻塞
+   *
+   * @return 当前容量
+   */
+  int capacity();
+
+  /**
+   * 元素因窗口容量不足被拒绝时调用，可用于统计需求；分组配额已满导致的拒绝不会调用
+   */
+  default void onRejected() {
+  }
+
+  /**
+   * 窗口setup()时调用
+   *
+   * @param window 使用该容量来源的窗口
+   */
+  default void start(ExpireSlidingWindow<?, ?> window) {
+  }
+
+  /**
+   * 窗口不再使用该容量来源时调用
+   */
+  default void stop() {
+  }
+
+}
@@ -0,0 +1,154 @@
+package org.happy.esw;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 滑动窗口的过期调度器
+ * <p>
+ * 窗口不再各自阻塞等待DelayQueue，而是在最早过期的元素到期时向调度器提交一次清理任务，
+ * 因此多个窗口可以共享同一个调度器（同一个定时线程），避免每个窗口占用一个常驻线程。
+ * <p>
+ * 过期回调默认在定时线程中执行，回调较慢时可指定回调执行器，例如JDK21+的{@code Executors.newVirtualThreadPerTaskExecutor()}，
+ * 避免单个窗口的回调拖慢其他窗口的过期清理。
+ *
+ * @author huangzhonghui
+ */
+@Slf4j
+public class ExpireScheduler {
+
+  private final ScheduledThreadPoolExecutor timer;
+  /**
+   * 过期回调的执行器，为空时在定时线程中执行
+   */
+  private final Executor callbackExecutor;
+  /**
+   * 定时线程，线程异常退出后由新建的线程替换
+   */
+  private volatile Thread timerThread;
+
+  /**
+   * 构建一个单线程的过期调度器
+   *
+   * @param name 定时线程名称
+   */
+  public ExpireScheduler(String name) {
+    this(name, null);
+  }
+
+  /**
+   * 构建一个单线程的过期调度器
+   *
+   * @param name             定时线程名称
+   * @param callbackExecutor 过期回调的执行器，为空时在定时线程中执行
+   */
+  public ExpireScheduler(String name, Executor callbackExecutor) {
+    this(daemonThreadFactory(name), callbackExecutor);
+  }
+
+  /**
+   * 构建一个单线程的过期调度器
+   *
+   * @param threadFactory    定时线程工厂
+   * @param callbackExecutor 过期回调的执行器，为空时在定时线程中执行
+   */
+  public ExpireScheduler(ThreadFactory threadFactory, Executor callbackExecutor) {
+    this.timer = new ScheduledThreadPoolExecutor(1, r -> {
+      Thread thread = threadFactory.newThread(r);
+      this.timerThread = thread;
+      return thread;
+    });
+    this.timer.setRemoveOnCancelPolicy(true);
+    this.timer.setExecuteExistingDelayedTasksAfterShutdownPolicy(false);
+    this.callbackExecutor = callbackExecutor;
+  }
+
+  /**
+   * 进程内共享的过期调度器，首次使用时创建，随进程存活，不能被关闭：调用其shutdown()会抛出UnsupportedOperationException
+   */
+  public static ExpireScheduler shared() {
+    return SharedHolder.INSTANCE;
+  }
+
+  /**
+   * 延迟执行清理任务
+   */
+  ScheduledFuture<?> schedule(Runnable task, long delayMillis) {
+    return this.timer.schedule(task, Math.max(0L, delayMillis), TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * 当前线程是否为定时线程
+   */
+  boolean isTimerThread() {
+    return Thread.currentThread() == this.timerThread;
+  }
+
+  /**
+   * 执行过期回调
+   */
+  void dispatch(Runnable callback) {
+    if (this.callbackExecutor == null) {
+      callback.run();
+      return;
+    }
+    try {
+      this.callbackExecutor.execute(callback);
+    } catch (RejectedExecutionException e) {
+      log.warn("回调执行器拒绝执行，改为在定时线程中执行过期回调");
+      callback.run();
+    }
+  }
+
+  /**
+   * 关闭调度器，已提交但未到期的清理任务不再执行，正在执行的清理任务及定时线程中的过期回调不会被中断。回调执行器由调用方自行关闭。
+   * <p>
+   * 使用该调度器的窗口须先关闭，否则之后的put会抛出IllegalStateException。
+   *
+   * @throws UnsupportedOperationException 进程内共享的调度器{@link #shared()}不能被关闭
+   */
+  public void shutdown() {
+    this.timer.shutdown();
+  }
+
+  public boolean isShutdown() {
+    return this.timer.isShutdown();
+  }
+
+  /**
+   * 等待调度器关闭
+   */
+  public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+    return this.timer.awaitTermination(timeout, unit);
+  }
+
+  /**
+   * 进程内共享的调度器，延迟到首次使用时创建
+   */
+  private static final class SharedHolder {
+
+    static final ExpireScheduler INSTANCE = new ExpireScheduler("EswSharedExpireThread") {
+      @Override
+      public void shutdown() {
+        throw new UnsupportedOperationException("进程内共享的过期调度器不能被关闭");
+      }
+    };
+  }
+
+  private static ThreadFactory daemonThreadFactory(String name) {
+    AtomicInteger index = new AtomicInteger(0);
+    return r -> {
+      Thread thread = new Thread(r);
+      thread.setDaemon(true);
+      int i = index.getAndIncrement();
+      thread.setName(i == 0 ? name : name + "-" + i);
+      return thread;
+    };
+  }
+}
@@ -1,12 +1,25 @@
 package org.happy.esw;
 
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Spliterator;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.DelayQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 import lombok.extern.slf4j.Slf4j;
+import org.happy.esw.ExpiryList.Node;
 
 /**
  * <h3>元素会过期的"滑动窗口"</h3> <br>
@@ -16,16 +29,46 @@ import lombok.extern.slf4j.Slf4j;
  * 适用用采用"窗口机制"控制消息处理速度的场景，窗口机制的优势是能自动调节生产者与消费者处理能力。使用时，处理消息前将消息put到窗口，消息被成功（或失败）处理后从窗口移除。<br>
  * <p>
  * <b>功能点：</b><br>
- * 1.支持设定一个过期时间，元素在超过一定时长后，会自动从窗口清除，采用DelayQueue实现；<br>
+ * 1.支持设定一个过期时间，元素在超过一定时长后，会自动从窗口清除，采用按到期时间排序的链表实现，节点回收复用；<br>
  * <p>
  * 2.清除过期元素支持自定义回调函数来做清除后处理工作，比如更新数据库状态；<br>
  * <p>
  * 3.当窗口达到临界值大小时，不接受新的元素，且会触发自定义回调操作，可用于消息处理的担保机制。<br>
+ * <p>
+ * 4.支持按Key分组设置配额，避免单个分组占满整个窗口，详见{@link #setGroupQuotas(KeyClassifier, Map, boolean)}。<br>
+ * <p>
+ * 5.支持动态容量，例如多个节点通过集群协调共享同一个下游的并发上限，详见{@link #setCapacityProvider(CapacityProvider)}。<br>
+ * <p>
+ * 6.过期清理由{@link ExpireScheduler}调度，默认每个窗口独占一个调度线程，窗口较多时可共享同一个调度器，
+ * 详见{@link #setExpireScheduler(ExpireScheduler)}。<br>
+ * <p>
+ * 7.窗口不再使用时须调用{@link #close()}或{@link #close(long, TimeUnit)}，释放调度线程及窗口中的元素。<br>
+ * <p>
+ * 8.支持去重模式，元素被remove后的一段时间内拒绝相同Key再次进入窗口，详见{@link #setDeduplication(long, TimeUnit, int, double)}。<br>
+ * <p>
+ * 9.支持设置过期粒度，将相近的到期时间合并为一次清理，详见{@link #setExpireGranularity(long, TimeUnit)}，
+ * 实际的过期延迟可通过{@link #getExpireStats()}观测。<br>
+ * <p>
+ * 10.支持按到期时间顺序查询窗口中的元素，例如即将过期的元素、最早进入窗口的N个元素，查询不加锁，不影响put/remove。<br>
  *
  * @author huangzhonghui
  */
 @Slf4j
-public class ExpireSlidingWindow<K, V> {
+public class ExpireSlidingWindow<K, V> implements AutoCloseable {
+
+  /**
+   * 按到期时间升序
+   */
+  private static final Comparator<WindowEntry<?, ?>> DEADLINE_ORDER =
+      Comparator.comparingLong(WindowEntry::getDeadline);
+  /**
+   * 关闭窗口时等待独占的调度线程结束的最长时间，单位 TimeUnit.MILLISECONDS
+   */
+  private static final long SCHEDULER_TERMINATION_MILLIS = 1000L;
+  /**
+   * 当前线程正在执行其expireCallback批次的窗口，用于识别在回调中关闭窗口
+   */
+  private static final ThreadLocal<ExpireSlidingWindow<?, ?>> CALLBACK_WINDOW = new ThreadLocal<>();
 
   /**
    * 滑动窗口名称
@@ -40,13 +83,13 @@ public class ExpireSlidingWindow<K, V> {
    */
   private final long delayedMillis;
   /**
-   * 存储
+   * 存储，value为同时位于到期链表中的节点
    */
-  private final ConcurrentHashMap<K, V> cache;
+  private final ConcurrentHashMap<K, Node<K, V>> cache;
   /**
-   * 延迟队列，实现过期
+   * 到期链表，实现过期，在lock内读写
    */
-  private final DelayQueue<DelayItem<K>> delayQueue;
+  private final ExpiryList<K, V> expiryList;
   /**
    * 元素超时的回调函数
    */
@@ -58,8 +101,60 @@ public class ExpireSlidingWindow<K, V> {
 
   private final AtomicInteger size = new AtomicInteger(0);
   private final AtomicBoolean setup = new AtomicBoolean(false);
+  private final AtomicBoolean closed = new AtomicBoolean(false);
+  /**
+   * 分组配额，未设置时所有元素共享窗口容量
+   */
+  private GroupQuotas<K> groupQuotas;
+  /**
+   * 动态容量来源，未设置时窗口容量固定为windowCapacity
+   */
+  private CapacityProvider capacityProvider;
+  /**
+   * 最近完成（被remove）的key，未开启去重模式时为空
+   */
+  private RecentKeyFilter recentKeys;
+  /**
+   * 去重模式下拒绝重复元素的回调函数
+   */
+  private Callback<K, V> duplicateCallback;
+  /**
+   * 窗口槽位被释放（元素移除或过期）时的监听器
+   */
+  private final CopyOnWriteArrayList<Runnable> releaseListeners = new CopyOnWriteArrayList<>();
+  /**
+   * 过期调度器
+   */
+  private ExpireScheduler expireScheduler;
+  /**
+   * 未指定过期调度器时，窗口独占的调度器，关闭窗口时一并关闭
+   */
+  private boolean ownsScheduler;
+  /**
+   * 已提交的过期清理任务，在lock内读写
+   */
+  private ScheduledFuture<?> drainFuture;
+  /**
+   * 已清理但尚未执行完expireCallback的批次数量，在lock内读写
+   */
+  private int pendingCallbacks;
+  /**
+   * 过期粒度，单位 TimeUnit.MILLISECONDS，到期时间向上对齐到粒度的整数倍后再调度清理
+   */
+  private long granularityMillis = 1L;
+  /**
+   * 过期清理统计，在lock内读写
+   */
+  private long wakeups;
+  private long expiredCount;
+  private long totalLagMillis;
+  private long maxLagMillis;
 
   private final transient ReentrantLock lock = new ReentrantLock();
+  /**
+   * 窗口关闭时，等待窗口中的元素全部移除
+   */
+  private final Condition drained = lock.newCondition();
 
   /**
    * 构建一个滑动窗口，构建后需要执行一次setup()方法。
@@ -80,20 +175,117 @@ public class ExpireSlidingWindow<K, V> {
     this.windowCapacity = windowCapacity;
     this.delayedMillis = TimeUnit.MILLISECONDS.convert(aliveTime, unit);
     cache = new ConcurrentHashMap<>(windowCapacity);
-    delayQueue = new DelayQueue<>();
+    expiryList = new ExpiryList<>(windowCapacity);
     this.expireCallback = expireCallback;
     this.rateLimitingCallback = rateLimitingCallback;
   }
 
   /**
-   * 启动过期检查线程
+   * 设置分组配额，须在setup()之前调用。
+   * <p>
+   * 每个分组的配额为其保底容量，未配置的分组归入"default"分组，"default"分组未显式配置时使用剩余的窗口容量。
+   * 开启借用后，分组可超出配额使用窗口中的空闲容量，但不会占用其他分组尚未使用的保底配额。
+   *
+   * @param classifier 分组函数，同一个key须返回相同分组
+   * @param quotas     分组名称与配额，配额之和不能超过窗口容量
+   * @param borrowing  是否允许借用空闲容量
+   */
+  public void setGroupQuotas(KeyClassifier<K> classifier, Map<String, Integer> quotas, boolean borrowing) {
+    if (this.setup.get()) {
+      throw new IllegalStateException("分组配额须在setup()方法之前设置!");
+    }
+    this.groupQuotas = new GroupQuotas<>(classifier, quotas, this.windowCapacity, borrowing);
+  }
+
+  /**
+   * 设置动态容量来源，须在setup()之前调用。窗口的实际容量为windowCapacity与动态容量中的较小值。
+   *
+   * @param capacityProvider 动态容量来源
+   */
+  public void setCapacityProvider(CapacityProvider capacityProvider) {
+    if (this.setup.get()) {
+      throw new IllegalStateException("动态容量须在setup()方法之前设置!");
+    }
+    this.capacityProvider = capacityProvider;
+  }
+
+  /**
+   * 开启去重模式，须在setup()之前调用。
+   * <p>
+   * 元素被remove（即处理完成）后，在保留时长内拒绝相同Key再次进入窗口，put返回false且不触发rateLimitingCallback；
+   * 元素因过期被清理时不记录，允许重试。最近完成的Key采用按时间分代的布隆过滤器记录，内存占用固定，
+   * 存在fpp概率将新Key误判为重复，需要处理误判的场景请使用{@link #setDeduplication(long, TimeUnit, int, double, Callback)}。
+   *
+   * @param ttl          完成后的保留时长
+   * @param unit         时间单位
+   * @param expectedKeys 保留时长内预计完成的元素数量
+   * @param fpp          误判率，例如0.001
+   */
+  public void setDeduplication(long ttl, TimeUnit unit, int expectedKeys, double fpp) {
+    this.setDeduplication(ttl, unit, expectedKeys, fpp, null);
+  }
+
+  /**
+   * 开启去重模式，须在setup()之前调用，被判定为重复而拒绝的元素执行duplicateCallback，
+   * 可用于记录或补偿被误判的新元素。
+   *
+   * @param ttl               完成后的保留时长
+   * @param unit              时间单位
+   * @param expectedKeys      保留时长内预计完成的元素数量
+   * @param fpp               误判率，例如0.001
+   * @param duplicateCallback 拒绝重复元素的回调函数
+   */
+  public void setDeduplication(long ttl, TimeUnit unit, int expectedKeys, double fpp,
+      Callback<K, V> duplicateCallback) {
+    if (this.setup.get()) {
+      throw new IllegalStateException("去重模式须在setup()方法之前设置!");
+    }
+    this.recentKeys = new RecentKeyFilter(ttl, unit, expectedKeys, fpp);
+    this.duplicateCallback = duplicateCallback;
+  }
+
+  /**
+   * 设置过期粒度，须在setup()之前调用，默认1毫秒。
+   * <p>
+   * 到期时间落在同一个粒度区间内的元素在区间结束时一次性清理，元素最多晚一个粒度过期，但不会提前过期。
+   * 突发写入时大量元素的到期时间相近，增大粒度可显著减少调度线程的唤醒与加锁次数。
+   *
+   * @param granularity 过期粒度，例如10毫秒
+   * @param unit        时间单位
+   */
+  public void setExpireGranularity(long granularity, TimeUnit unit) {
+    if (this.setup.get()) {
+      throw new IllegalStateException("过期粒度须在setup()方法之前设置!");
+    }
+    this.granularityMillis = Math.max(1L, TimeUnit.MILLISECONDS.convert(granularity, unit));
+  }
+
+  /**
+   * 设置过期调度器，须在setup()之前调用。未设置时窗口独占一个调度线程。
+   * <p>
+   * 窗口较多时，可使用{@link ExpireScheduler#shared()}或自建的调度器，由多个窗口共享同一个定时线程。
+   *
+   * @param expireScheduler 过期调度器
+   */
+  public void setExpireScheduler(ExpireScheduler expireScheduler) {
+    if (this.setup.get()) {
+      throw new IllegalStateException("过期调度器须在setup()方法之前设置!");
+    }
+    this.expireScheduler = expireScheduler;
+  }
+
+  /**
+   * 启动过期调度
    */
   public void setup() {
     if (!setup.get()) {
-      Thread expireCheckThread = new Thread(this::expireCheck);
-      expireCheckThread.setDaemon(true);
-      expireCheckThread.setName("ExpireCacheCheckThread-" + name);
-      expireCheckThread.start();
+      if (this.capacityProvider != null) {
+        this.capacityProvider.start(this);
+      }
+      if (this.expireScheduler == null) {
+        this.expireScheduler = new ExpireScheduler("ExpireCacheCheckThread-" + name);
+        this.ownsScheduler = true;
+      }
       setup.set(true);
     }
   }
@@ -109,69 +301,143 @@ public class ExpireSlidingWindow<K, V> {
     if (!this.setup.get()) {
       throw new RuntimeException("使用滑动窗口前，须先执行setup()方法，该方法仅需执行一次!");
     }
+    if (this.closed.get()) {
+      throw new IllegalStateException("滑动窗口已关闭: " + this.name);
+    }
+    // 调度器被关闭后元素永远不会过期，窗口会逐渐被占满
+    if (this.expireScheduler.isShutdown()) {
+      throw new IllegalStateException("过期调度器已关闭，滑动窗口无法继续使用: " + this.name);
+    }
     if (key == null || value == null) {
       return false;
     }
-    // 活动窗口未满
-    if (this.size.get() < this.windowCapacity) {
+    // 去重模式下，最近完成的元素不允许再次进入窗口；此处为快速路径，新元素加入前会在锁内再次检查
+    if (this.recentKeys != null && this.recentKeys.mightContain(key) && !this.containsKey(key)) {
+      this.rejectDuplicate(key, value);
+      return false;
+    }
+    GroupQuotas.Group group = this.groupQuotas == null ? null : this.groupQuotas.groupOf(key);
+    GroupQuotas.Admission admission = this.tryAcquire(group);
+    // 活动窗口（及所属分组）未满
+    if (admission == GroupQuotas.Admission.ACQUIRED) {
+      boolean duplicate = false;
       this.lock.lock();
       try {
-        V oldValue = cache.put(key, value);
-        if (oldValue != null) {
-          for (DelayItem<K> item : delayQueue) {
-            if (item.getItem().equals(key)) {
-              item.refresh();
-              break;
-            }
-          }
+        // 占用槽位后窗口被关闭
+        if (this.closed.get()) {
+          this.release(group);
+          return false;
+        }
+        long deadline = System.currentTimeMillis() + this.delayedMillis;
+        Node<K, V> node = this.cache.get(key);
+        if (node != null) {
+          // 已有元素更新并续期，归还刚占用的槽位
+          this.release(group);
+          node.value = value;
+          this.expiryList.moveToLast(node, deadline);
         } else {
+          // 与remove在锁内记录最近完成的key互斥，避免与确认并发的重试再次进入窗口
+          if (this.recentKeys != null && this.recentKeys.mightContain(key)) {
+            this.release(group);
+            duplicate = true;
+            return false;
+          }
           // 新元素
-          this.delayQueue.offer(new DelayItem<>(key, this.delayedMillis, TimeUnit.MILLISECONDS));
-          this.size.incrementAndGet();
+          node = this.expiryList.obtain(key, value, deadline, group);
+          this.cache.put(key, node);
+          this.expiryList.linkLast(node);
+          if (this.drainFuture == null) {
+            this.scheduleDrain(deadline, deadline - this.delayedMillis);
+          }
         }
       } finally {
         this.lock.unlock();
+        if (duplicate) {
+          this.rejectDuplicate(key, value);
+        }
       }
       return true;
     }
+    // 只有窗口容量不足时才计入集群需求，分组配额已满时多租借容量也无法使用
+    if (this.capacityProvider != null && admission == GroupQuotas.Admission.WINDOW_FULL) {
+      this.capacityProvider.onRejected();
+    }
     // 滑动窗口已满，且具备回调函数时，如果添加的是新元素，则执行回调函数，做担保处理
-    else if (!this.containsKey(key) && this.rateLimitingCallback != null) {
+    if (!this.containsKey(key) && this.rateLimitingCallback != null) {
+      log.info("滑动窗口已满，执行rateLimitingCallback.handle() for :{}", key);
+      this.reject(key, value);
+    }
+    return false;
+  }
+
+  /**
+   * 去重模式下拒绝最近已完成的元素，执行duplicateCallback
+   */
+  private void rejectDuplicate(K key, V value) {
+    log.info("滑动窗口拒绝最近已完成的重复元素 for :{}", key);
+    if (this.duplicateCallback != null) {
       try {
-        log.info("滑动窗口已满，执行rateLimitingCallback.handle() for :{}", key);
-        this.rateLimitingCallback.handle(key, value);
+        this.duplicateCallback.handle(key, value);
       } catch (Exception e) {
-        log.error("rateLimitingCallback.handle() cause unknown exception", e);
+        log.error("duplicateCallback.handle() cause unknown exception", e);
       }
     }
-    return false;
+  }
+
+  /**
+   * 将未能进入窗口的元素交给rateLimitingCallback做担保处理，例如已从上游取得、但因队列关闭而无法投递的消息
+   *
+   * @return true 已执行rateLimitingCallback，false 未设置rateLimitingCallback
+   */
+  public boolean reject(K key, V value) {
+    if (this.rateLimitingCallback == null) {
+      return false;
+    }
+    try {
+      this.rateLimitingCallback.handle(key, value);
+    } catch (Exception e) {
+      log.error("rateLimitingCallback.handle() cause unknown exception", e);
+    }
+    return true;
   }
 
   /**
    * 删除指定Key对应的元素
    */
   public V remove(K key) {
+    V value = null;
     this.lock.lock();
     try {
-      V value = this.cache.remove(key);
-      if (value != null) {
-        this.delayQueue.remove(new DelayItem<>(key, 0L, TimeUnit.MILLISECONDS));
-        this.size.decrementAndGet();
+      Node<K, V> node = this.cache.remove(key);
+      if (node != null) {
+        value = node.value;
+        this.expiryList.unlink(node);
+        this.release(node.group);
+        this.expiryList.recycle(node);
+        // 在锁内记录，之后的put一定能看到
+        if (this.recentKeys != null) {
+          this.recentKeys.add(key);
+        }
       }
-      return value;
     } finally {
       this.lock.unlock();
     }
+    if (value != null) {
+      this.fireReleased();
+    }
+    return value;
   }
 
   /**
    * 获取指定Key对应的元素
    */
   public V get(K key) {
-    return this.cache.get(key);
+    Node<K, V> node = this.cache.get(key);
+    return node == null ? null : node.valueOf(key);
   }
 
   public boolean containsKey(K key) {
-    return this.cache.containsKey(key);
+    return this.get(key) != null;
   }
 
   public int size() {
@@ -179,33 +445,386 @@ public class ExpireSlidingWindow<K, V> {
   }
 
   /**
-   * 真正的失效检测
+   * 按到期时间升序遍历窗口中的元素。
+   * <p>
+   * 弱一致：遍历的是调用时刻的快照，不加锁，不会阻塞put/remove；快照期间被加入、移除或续期的元素可能反映也可能不反映在结果中。
+   */
+  public Iterator<WindowEntry<K, V>> deadlineIterator() {
+    return this.snapshot().iterator();
+  }
+
+  /**
+   * 剩余存活时长不超过指定时长的元素（含已到期尚未清理的元素），按到期时间升序排列，弱一致
+   *
+   * @param time 剩余存活时长
+   * @param unit 时间单位
+   */
+  public List<WindowEntry<K, V>> expiringWithin(long time, TimeUnit unit) {
+    long limit = System.currentTimeMillis() + TimeUnit.MILLISECONDS.convert(time, unit);
+    List<WindowEntry<K, V>> entries = new ArrayList<>();
+    for (Node<K, V> node : this.cache.values()) {
+      WindowEntry<K, V> entry = node.snapshot();
+      if (entry != null && entry.getDeadline() <= limit) {
+        entries.add(entry);
+      }
+    }
+    entries.sort(DEADLINE_ORDER);
+    return entries;
+  }
+
+  /**
+   * 最早到期的n个元素，按到期时间升序排列，弱一致
+   *
+   * @param n 数量
+   */
+  public List<WindowEntry<K, V>> oldest(int n) {
+    if (n <= 0) {
+      return new ArrayList<>(0);
+    }
+    // 大顶堆保留最早到期的n个
+    PriorityQueue<WindowEntry<K, V>> heap = new PriorityQueue<>(Math.min(n, 1024), DEADLINE_ORDER.reversed());
+    for (Node<K, V> node : this.cache.values()) {
+      WindowEntry<K, V> entry = node.snapshot();
+      if (entry == null) {
+        continue;
+      }
+      if (heap.size() < n) {
+        heap.offer(entry);
+      } else if (entry.getDeadline() < heap.peek().getDeadline()) {
+        heap.poll();
+        heap.offer(entry);
+      }
+    }
+    List<WindowEntry<K, V>> entries = new ArrayList<>(heap);
+    entries.sort(DEADLINE_ORDER);
+    return entries;
+  }
+
+  /**
+   * 按到期时间升序的Spliterator，可拆分，支持并行处理，弱一致
    */
-  private void expireCheck() {
+  public Spliterator<WindowEntry<K, V>> spliterator() {
+    return this.snapshot().spliterator();
+  }
+
+  /**
+   * 按到期时间升序的Stream，可通过parallel()并行处理，弱一致
+   */
+  public Stream<WindowEntry<K, V>> stream() {
+    return StreamSupport.stream(this.spliterator(), false);
+  }
+
+  /**
+   * 窗口中元素按到期时间升序排列的快照
+   */
+  private List<WindowEntry<K, V>> snapshot() {
+    List<WindowEntry<K, V>> entries = new ArrayList<>(this.size.get());
+    for (Node<K, V> node : this.cache.values()) {
+      WindowEntry<K, V> entry = node.snapshot();
+      if (entry != null) {
+        entries.add(entry);
+      }
+    }
+    entries.sort(DEADLINE_ORDER);
+    return entries;
+  }
+
+  /**
+   * 构建窗口时指定的容量
+   */
+  public int getWindowCapacity() {
+    return this.windowCapacity;
+  }
+
+  /**
+   * 窗口当前的实际容量
+   */
+  public int capacity() {
+    if (this.capacityProvider == null) {
+      return this.windowCapacity;
+    }
+    return Math.min(this.windowCapacity, this.capacityProvider.capacity());
+  }
+
+  /**
+   * 指定分组当前占用的窗口大小，未设置分组配额或分组不存在时返回0
+   */
+  public int groupSize(String group) {
+    GroupQuotas.Group g = this.groupQuotas == null ? null : this.groupQuotas.group(group);
+    return g == null ? 0 : g.used.get();
+  }
+
+  public boolean isClosed() {
+    return this.closed.get();
+  }
+
+  /**
+   * 立即关闭窗口：不再接受新元素，窗口中剩余的元素立即清理并执行expireCallback，然后释放调度线程等资源。
+   */
+  @Override
+  public void close() {
+    this.close(0L, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * 优雅关闭窗口：不再接受新元素，在超时时间内等待窗口中的元素被移除或过期，
+   * 超时后剩余的元素立即清理并执行expireCallback，然后释放调度线程等资源。
+   *
+   * @param timeout 等待时长
+   * @param unit    时间单位
+   * @return true 超时前窗口中的元素已全部移除或过期，false 有元素被强制清理
+   */
+  public boolean close(long timeout, TimeUnit unit) {
+    if (!this.closed.compareAndSet(false, true)) {
+      return this.size.get() == 0;
+    }
+    Node<K, V> flushed = null;
+    int count = 0;
+    // 在本窗口的expireCallback中关闭时，不等待当前线程正在执行的批次
+    int ownBatch = CALLBACK_WINDOW.get() == this ? 1 : 0;
+    this.lock.lock();
+    try {
+      long nanos = unit.toNanos(timeout);
+      while ((this.size.get() > 0 || this.pendingCallbacks > ownBatch) && nanos > 0L) {
+        nanos = this.drained.awaitNanos(nanos);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      log.warn("滑动窗口关闭时等待被中断，强制清理剩余元素 :{}", this.name);
+    } finally {
+      try {
+        // 剩余元素按到期顺序串联成批次
+        Node<K, V> last = null;
+        Node<K, V> node;
+        while ((node = this.expiryList.pollFirst()) != null) {
+          this.cache.remove(node.key, node);
+          this.release(node.group);
+          if (last == null) {
+            flushed = node;
+          } else {
+            last.next = node;
+          }
+          last = node;
+          count++;
+        }
+        if (this.drainFuture != null) {
+          this.drainFuture.cancel(false);
+          this.drainFuture = null;
+        }
+      } finally {
+        this.lock.unlock();
+      }
+    }
+    if (flushed != null) {
+      log.info("滑动窗口关闭，强制清理 {} 个元素 :{}", count, this.name);
+      this.fireReleased();
+      if (this.expireCallback != null) {
+        this.handleExpired(flushed);
+      }
+      this.recycle(flushed);
+    }
+    this.releaseListeners.clear();
+    if (this.ownsScheduler) {
+      // 不中断正在定时线程中执行的过期回调
+      this.expireScheduler.shutdown();
+      // 在定时线程中关闭时（例如在expireCallback中），定时线程在本次任务结束后退出，无需等待
+      if (!this.expireScheduler.isTimerThread()) {
+        try {
+          if (!this.expireScheduler.awaitTermination(SCHEDULER_TERMINATION_MILLIS, TimeUnit.MILLISECONDS)) {
+            log.warn("等待过期调度线程结束超时 :{}", this.name);
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    }
+    if (this.capacityProvider != null) {
+      this.capacityProvider.stop();
+    }
+    return flushed == null;
+  }
+
+  /**
+   * 添加窗口槽位释放监听器，元素被移除或过期后（在窗口锁之外）调用，监听器应快速返回
+   */
+  public void addReleaseListener(Runnable listener) {
+    this.releaseListeners.add(listener);
+  }
+
+  public void removeReleaseListener(Runnable listener) {
+    this.releaseListeners.remove(listener);
+  }
+
+  private void fireReleased() {
+    for (Runnable listener : this.releaseListeners) {
+      try {
+        listener.run();
+      } catch (Exception e) {
+        log.error("releaseListener.run() cause unknown exception", e);
+      }
+    }
+  }
+
+  /**
+   * 占用一个窗口槽位，设置了分组配额时同时占用分组配额
+   */
+  private GroupQuotas.Admission tryAcquire(GroupQuotas.Group group) {
+    int capacity = this.capacity();
+    if (group != null) {
+      return this.groupQuotas.tryAcquire(group, this.size, capacity);
+    }
     for (; ; ) {
+      int current = this.size.get();
+      if (current >= capacity) {
+        return GroupQuotas.Admission.WINDOW_FULL;
+      }
+      if (this.size.compareAndSet(current, current + 1)) {
+        return GroupQuotas.Admission.ACQUIRED;
+      }
+    }
+  }
+
+  /**
+   * 归还占用的窗口槽位，须在lock内调用
+   */
+  private void release(GroupQuotas.Group group) {
+    if (this.size.decrementAndGet() == 0 && this.closed.get()) {
+      this.drained.signalAll();
+    }
+    if (group != null) {
+      this.groupQuotas.release(group);
+    }
+  }
+
+  /**
+   * 过期清理统计
+   */
+  public ExpireStats getExpireStats() {
+    this.lock.lock();
+    try {
+      return new ExpireStats(this.wakeups, this.expiredCount, this.totalLagMillis, this.maxLagMillis);
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  /**
+   * 提交过期清理任务，执行时间为到期时间向上对齐到过期粒度，须在lock内调用
+   */
+  private void scheduleDrain(long deadline, long now) {
+    long aligned = (deadline + this.granularityMillis - 1) / this.granularityMillis * this.granularityMillis;
+    try {
+      this.drainFuture = this.expireScheduler.schedule(this::drainExpired, aligned - now);
+    } catch (RejectedExecutionException e) {
+      this.drainFuture = null;
+      log.error("过期调度器已关闭，无法清理过期元素 :{}", this.name);
+    }
+  }
+
+  /**
+   * 真正的失效检测：清理所有已过期的元素，并按队头元素的剩余存活时长提交下一次清理任务
+   */
+  private void drainExpired() {
+    // 过期的节点通过next串联成批次，执行完回调后再回收
+    Node<K, V> expired = null;
+    this.lock.lock();
+    try {
+      long now = System.currentTimeMillis();
+      this.wakeups++;
+      Node<K, V> last = null;
+      Node<K, V> head;
+      int count = 0;
+      while ((head = this.expiryList.peekFirst()) != null && head.deadline <= now) {
+        long lag = now - head.deadline;
+        this.totalLagMillis += lag;
+        this.maxLagMillis = Math.max(this.maxLagMillis, lag);
+        count++;
+        this.expiryList.unlink(head);
+        this.cache.remove(head.key, head);
+        this.release(head.group);
+        if (last == null) {
+          expired = head;
+        } else {
+          last.next = head;
+        }
+        last = head;
+      }
+      this.expiredCount += count;
+      if (count > 0) {
+        log.info("滑动窗口清理过期元素 {} 个 :{}", count, this.name);
+      }
+      if (expired != null && this.expireCallback != null) {
+        this.pendingCallbacks++;
+      }
+      if (head != null) {
+        this.scheduleDrain(head.deadline, now);
+      } else {
+        this.drainFuture = null;
+      }
+    } catch (Throwable t) {
+      log.error("drainExpired() cause unknown exception", t);
+      long now = System.currentTimeMillis();
+      this.scheduleDrain(now + this.delayedMillis, now);
+    } finally {
+      this.lock.unlock();
+    }
+    if (expired == null) {
+      return;
+    }
+    this.fireReleased();
+    if (this.expireCallback == null) {
+      this.recycle(expired);
+      return;
+    }
+    Node<K, V> batch = expired;
+    this.expireScheduler.dispatch(() -> {
+      CALLBACK_WINDOW.set(this);
       try {
-        DelayItem<K> delayItem = this.delayQueue.take();
+        this.handleExpired(batch);
+      } finally {
+        CALLBACK_WINDOW.remove();
         this.lock.lock();
-        V v;
         try {
-          v = this.cache.remove(delayItem.getItem());
-          if (v != null) {
-            this.size.decrementAndGet();
+          this.recycleLocked(batch);
+          if (--this.pendingCallbacks == 0 && this.closed.get()) {
+            this.drained.signalAll();
           }
         } finally {
           this.lock.unlock();
         }
-        if (this.expireCallback != null && v != null) {
-          try {
-            log.info("滑动窗中元素因过期而被清理，执行expireCallback.handle() for :{}", delayItem.getItem());
-            this.expireCallback.handle(delayItem.getItem(), v);
-          } catch (Exception e) {
-            log.error("expireCallback.handle() cause unknown exception", e);
-          }
-        }
-      } catch (Throwable t) {
-        log.error("expireCheck() cause unknown exception", t);
       }
+    });
+  }
+
+  private void handleExpired(Node<K, V> batch) {
+    for (Node<K, V> node = batch; node != null; node = node.next) {
+      try {
+        log.debug("滑动窗中元素因过期而被清理，执行expireCallback.handle() for :{}", node.key);
+        this.expireCallback.handle(node.key, node.value);
+      } catch (Exception e) {
+        log.error("expireCallback.handle() cause unknown exception", e);
+      }
+    }
+  }
+
+  /**
+   * 回收一个批次的节点
+   */
+  private void recycle(Node<K, V> batch) {
+    this.lock.lock();
+    try {
+      this.recycleLocked(batch);
+    } finally {
+      this.lock.unlock();
+    }
+  }
+
+  private void recycleLocked(Node<K, V> batch) {
+    Node<K, V> node = batch;
+    while (node != null) {
+      Node<K, V> next = node.next;
+      this.expiryList.recycle(node);
+      node = next;
     }
   }
 }
@@ -0,0 +1,72 @@
+package org.happy.esw;
+
+/**
+ * 过期清理的统计快照
+ * <p>
+ * 过期延迟（lag）为元素实际被清理的时间与其到期时间之差，受过期粒度、调度线程繁忙程度影响；
+ * 过期粒度越大，唤醒次数越少，但延迟越大。
+ *
+ * @author huangzhonghui
+ */
+public class ExpireStats {
+
+  /**
+   * 过期清理任务的执行次数
+   */
+  private final long wakeups;
+  /**
+   * 因过期被清理的元素数量
+   */
+  private final long expired;
+  /**
+   * 所有过期元素的延迟之和，单位 TimeUnit.MILLISECONDS
+   */
+  private final long totalLagMillis;
+  /**
+   * 最大延迟，单位 TimeUnit.MILLISECONDS
+   */
+  private final long maxLagMillis;
+
+  public ExpireStats(long wakeups, long expired, long totalLagMillis, long maxLagMillis) {
+    this.wakeups = wakeups;
+    this.expired = expired;
+    this.totalLagMillis = totalLagMillis;
+    this.maxLagMillis = maxLagMillis;
+  }
+
+  public long getWakeups() {
+    return wakeups;
+  }
+
+  public long getExpired() {
+    return expired;
+  }
+
+  public long getMaxLagMillis() {
+    return maxLagMillis;
+  }
+
+  /**
+   * 平均延迟，单位 TimeUnit.MILLISECONDS
+   */
+  public double getAvgLagMillis() {
+    return expired == 0 ? 0D : (double) totalLagMillis / expired;
+  }
+
+  /**
+   * 平均每次唤醒清理的元素数量
+   */
+  public double getAvgBatchSize() {
+    return wakeups == 0 ? 0D : (double) expired / wakeups;
+  }
+
+  @Override
+  public String toString() {
+    return "ExpireStats{" +
+        "wakeups=" + wakeups +
+        ", expired=" + expired +
+        ", avgLagMillis=" + getAvgLagMillis() +
+        ", maxLagMillis=" + maxLagMillis +
+        '}';
+  }
+}
@@ -0,0 +1,175 @@
+package org.happy.esw;
+
+/**
+ * 按到期时间排序的侵入式双向链表，同时维护已回收节点的对象池
+ * <p>
+ * 窗口中所有元素的存活时长相同，新元素和续期的元素总是最晚到期，因此追加到链表尾部即可保持有序，
+ * 入队、续期、删除、出队均为O(1)。节点同时作为存储map的value，删除后回收复用，稳定运行时put/remove不再分配对象。
+ * <p>
+ * 非线程安全，须在窗口的lock内调用。
+ *
+ * @author huangzhonghui
+ */
+final class ExpiryList<K, V> {
+
+  /**
+   * 对象池最多缓存的节点数量
+   */
+  private final int poolCapacity;
+
+  private Node<K, V> head;
+  private Node<K, V> tail;
+  /**
+   * 对象池，通过next串联
+   */
+  private Node<K, V> pool;
+  private int pooled;
+
+  ExpiryList(int poolCapacity) {
+    this.poolCapacity = poolCapacity;
+  }
+
+  /**
+   * 从对象池获取节点，对象池为空时创建新节点
+   */
+  Node<K, V> obtain(K key, V value, long deadline, GroupQuotas.Group group) {
+    Node<K, V> node = this.pool;
+    if (node == null) {
+      node = new Node<>();
+    } else {
+      this.pool = node.next;
+      node.next = null;
+      this.pooled--;
+    }
+    node.key = key;
+    node.group = group;
+    node.deadline = deadline;
+    node.value = value;
+    // 版本号变为偶数，节点可被无锁读取
+    node.version++;
+    return node;
+  }
+
+  /**
+   * 回收已从链表及存储map中移除的节点
+   */
+  void recycle(Node<K, V> node) {
+    // 版本号变为奇数，正在读取该节点的线程会放弃读取结果
+    node.version++;
+    node.value = null;
+    node.key = null;
+    node.group = null;
+    node.prev = null;
+    if (this.pooled < this.poolCapacity) {
+      node.next = this.pool;
+      this.pool = node;
+      this.pooled++;
+    } else {
+      node.next = null;
+    }
+  }
+
+  void linkLast(Node<K, V> node) {
+    node.prev = this.tail;
+    node.next = null;
+    if (this.tail == null) {
+      this.head = node;
+    } else {
+      this.tail.next = node;
+    }
+    this.tail = node;
+  }
+
+  void unlink(Node<K, V> node) {
+    Node<K, V> prev = node.prev;
+    Node<K, V> next = node.next;
+    if (prev == null) {
+      this.head = next;
+    } else {
+      prev.next = next;
+    }
+    if (next == null) {
+      this.tail = prev;
+    } else {
+      next.prev = prev;
+    }
+    node.prev = null;
+    node.next = null;
+  }
+
+  /**
+   * 续期，移动到链表尾部
+   */
+  void moveToLast(Node<K, V> node, long deadline) {
+    node.deadline = deadline;
+    if (node != this.tail) {
+      this.unlink(node);
+      this.linkLast(node);
+    }
+  }
+
+  /**
+   * 最早到期的节点
+   */
+  Node<K, V> peekFirst() {
+    return this.head;
+  }
+
+  /**
+   * 移除并返回最早到期的节点
+   */
+  Node<K, V> pollFirst() {
+    Node<K, V> node = this.head;
+    if (node != null) {
+      this.unlink(node);
+    }
+    return node;
+  }
+
+  static final class Node<K, V> {
+
+    /**
+     * 版本号，奇数表示节点在对象池中；每次复用或回收都会改变，用于无锁读取时校验节点未被复用
+     */
+    volatile int version = 1;
+    volatile K key;
+    volatile V value;
+    /**
+     * 到期时间，单位 TimeUnit.MILLISECONDS
+     */
+    volatile long deadline;
+    GroupQuotas.Group group;
+    /**
+     * 链表指针；节点被移出链表后，next也用于串联过期批次及对象池
+     */
+    Node<K, V> prev;
+    Node<K, V> next;
+
+    /**
+     * 无锁读取节点的快照，节点已被回收或读取期间被复用时返回null
+     */
+    WindowEntry<K, V> snapshot() {
+      int before = this.version;
+      if ((before & 1) != 0) {
+        return null;
+      }
+      K k = this.key;
+      V v = this.value;
+      long d = this.deadline;
+      return before == this.version && k != null && v != null ? new WindowEntry<>(k, v, d) : null;
+    }
+
+    /**
+     * 无锁读取key对应的value。节点可能已被回收并复用于其他key，此时返回null。
+     */
+    V valueOf(Object k) {
+      int before = this.version;
+      if ((before & 1) != 0) {
+        return null;
+      }
+      V v = this.value;
+      K current = this.key;
+      return before == this.version && k.equals(current) ? v : null;
+    }
+  }
+}
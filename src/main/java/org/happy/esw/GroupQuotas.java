@@ -0,0 +1,140 @@
+package org.happy.esw;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 滑动窗口的分组配额
+ * <p>
+ * 每个分组拥有一份保底配额，配额内的占用只与全局容量竞争；开启借用后，分组可以超出配额占用其他分组空闲的容量，
+ * 但不会侵占其他分组尚未使用的保底配额。所有计数均采用CAS维护，准入判断为O(1)且无锁。
+ *
+ * @author huangzhonghui
+ */
+final class GroupQuotas<K> {
+
+  /**
+   * 未配置配额的key归入此分组
+   */
+  static final String DEFAULT_GROUP = "default";
+
+  private final KeyClassifier<K> classifier;
+  private final Map<String, Group> groups;
+  private final Group defaultGroup;
+  private final boolean borrowing;
+  /**
+   * 各分组尚未使用的保底配额之和，即 Σ max(0, quota - used)
+   */
+  private final AtomicInteger idleGuaranteed;
+
+  GroupQuotas(KeyClassifier<K> classifier, Map<String, Integer> quotas, int windowCapacity, boolean borrowing) {
+    int total = 0;
+    Map<String, Group> map = new HashMap<>(quotas.size() * 2);
+    for (Entry<String, Integer> entry : quotas.entrySet()) {
+      if (entry.getValue() < 0) {
+        throw new IllegalArgumentException("分组配额不能为负数: " + entry.getKey());
+      }
+      total += entry.getValue();
+      map.put(entry.getKey(), new Group(entry.getKey(), entry.getValue()));
+    }
+    if (total > windowCapacity) {
+      throw new IllegalArgumentException("分组配额之和(" + total + ")超过了窗口容量(" + windowCapacity + ")");
+    }
+    this.classifier = classifier;
+    // 默认分组未显式配置时，使用剩余的容量作为配额
+    int remaining = windowCapacity - total;
+    this.defaultGroup = map.computeIfAbsent(DEFAULT_GROUP, name -> new Group(name, remaining));
+    this.groups = Collections.unmodifiableMap(map);
+    this.borrowing = borrowing;
+    int idle = 0;
+    for (Group group : map.values()) {
+      idle += group.quota;
+    }
+    this.idleGuaranteed = new AtomicInteger(idle);
+  }
+
+  Group groupOf(K key) {
+    Group group = this.groups.get(this.classifier.classify(key));
+    return group == null ? this.defaultGroup : group;
+  }
+
+  Group group(String name) {
+    return this.groups.get(name);
+  }
+
+  /**
+   * 在分组内占用一个位置，并通过globalSize在全局容量内占用一个槽位
+   *
+   * @return 准入结果
+   */
+  Admission tryAcquire(Group group, AtomicInteger globalSize, int capacity) {
+    for (; ; ) {
+      int used = group.used.get();
+      boolean guaranteed = used < group.quota;
+      if (!guaranteed && !this.borrowing) {
+        return Admission.GROUP_FULL;
+      }
+      if (!group.used.compareAndSet(used, used + 1)) {
+        continue;
+      }
+      if (guaranteed) {
+        this.idleGuaranteed.decrementAndGet();
+      }
+      // 借用时需为其他分组预留其尚未使用的保底配额
+      int reserved = guaranteed ? 0 : this.idleGuaranteed.get();
+      for (; ; ) {
+        int size = globalSize.get();
+        if (size + reserved >= capacity) {
+          this.release(group);
+          // 全局仍有空闲但已预留给其他分组时，视为分组已满
+          return size >= capacity ? Admission.WINDOW_FULL : Admission.GROUP_FULL;
+        }
+        if (globalSize.compareAndSet(size, size + 1)) {
+          return Admission.ACQUIRED;
+        }
+      }
+    }
+  }
+
+  /**
+   * 释放分组内的一个位置，全局槽位由调用方释放
+   */
+  void release(Group group) {
+    if (group.used.decrementAndGet() < group.quota) {
+      this.idleGuaranteed.incrementAndGet();
+    }
+  }
+
+  /**
+   * 准入结果
+   */
+  enum Admission {
+    /**
+     * 占用成功
+     */
+    ACQUIRED,
+    /**
+     * 分组配额已满，窗口仍有空闲
+     */
+    GROUP_FULL,
+    /**
+     * 窗口容量已满
+     */
+    WINDOW_FULL
+  }
+
+  static final class Group {
+
+    final String name;
+    final int quota;
+    final AtomicInteger used = new AtomicInteger(0);
+
+    Group(String name, int quota) {
+      this.name = name;
+      this.quota = quota;
+    }
+  }
+}
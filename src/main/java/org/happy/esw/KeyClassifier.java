@@ -0,0 +1,19 @@
+package org.happy.esw;
+
+/**
+ * Key分组函数，用于滑动窗口内按分组（租户、上游系统等）做配额控制
+ *
+ * @author huangzhonghui
+ */
+@FunctionalInterface
+public interface KeyClassifier<K> {
+
+  /**
+   * 返回key所属的分组名称，同一个key每次调用须返回相同结果。
+   *
+   * @param k key
+   * @return 分组名称，返回null或未配置配额的分组时归入默认分组
+   */
+  String classify(K k);
+
+}
@@ -0,0 +1,134 @@
+package org.happy.esw;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 最近完成的key集合，用于窗口的去重模式
+ * <p>
+ * 采用按时间分代的布隆过滤器环：共{@link #GENERATIONS}代，每个时间片写入当前代，进入新的时间片时整体清空最老的一代，
+ * 不需要逐个过期元素。key至少保留ttl时长、至多保留ttl加一个时间片；内存占用固定，与吞吐量无关。
+ * <p>
+ * 布隆过滤器存在误判：未出现过的key有fpp的概率被判定为重复，但已记录的key在保留期内一定会被判定为重复。
+ *
+ * @author huangzhonghui
+ */
+final class RecentKeyFilter {
+
+  /**
+   * 分代数量
+   */
+  static final int GENERATIONS = 4;
+
+  private final long sliceMillis;
+  private final int bits;
+  private final int hashes;
+  private final AtomicLongArray[] generations = new AtomicLongArray[GENERATIONS];
+  /**
+   * 当前时间片序号
+   */
+  private volatile long epoch;
+
+  /**
+   * @param ttl          key的保留时长
+   * @param unit         时间单位
+   * @param expectedKeys 保留时长内预计完成的key数量
+   * @param fpp          误判率
+   */
+  RecentKeyFilter(long ttl, TimeUnit unit, int expectedKeys, double fpp) {
+    if (expectedKeys <= 0 || fpp <= 0 || fpp >= 1) {
+      throw new IllegalArgumentException("expectedKeys须为正数，fpp须在(0,1)之间");
+    }
+    // 时间片向上取整，保证GENERATIONS-1个完整时间片不短于ttl
+    long ttlMillis = TimeUnit.MILLISECONDS.convert(ttl, unit);
+    this.sliceMillis = Math.max(1L, (ttlMillis + GENERATIONS - 2) / (GENERATIONS - 1));
+    // 查询时需检查所有代，每一代的误判率取总误判率的1/GENERATIONS
+    double p = fpp / GENERATIONS;
+    long m = (long) Math.ceil(-expectedKeys * Math.log(p) / (Math.log(2) * Math.log(2)));
+    this.bits = (int) Math.min(Integer.MAX_VALUE - 63L, Math.max(64L, m));
+    this.hashes = Math.max(1, (int) Math.round((double) this.bits / expectedKeys * Math.log(2)));
+    for (int i = 0; i < GENERATIONS; i++) {
+      this.generations[i] = new AtomicLongArray((this.bits + 63) >>> 6);
+    }
+    this.epoch = System.currentTimeMillis() / this.sliceMillis;
+  }
+
+  /**
+   * 记录一个已完成的key
+   */
+  void add(Object key) {
+    AtomicLongArray generation = this.generations[(int) (this.rotate() % GENERATIONS)];
+    int h1 = mix(key.hashCode());
+    int h2 = mix(h1 ^ 0x9E3779B9) | 1;
+    for (int i = 0; i < this.hashes; i++) {
+      int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % this.bits;
+      int index = bit >>> 6;
+      long mask = 1L << bit;
+      long word;
+      while (((word = generation.get(index)) & mask) == 0 && !generation.compareAndSet(index, word, word | mask)) {
+        // CAS失败重试
+      }
+    }
+  }
+
+  /**
+   * key是否可能在保留期内完成过
+   */
+  boolean mightContain(Object key) {
+    this.rotate();
+    int h1 = mix(key.hashCode());
+    int h2 = mix(h1 ^ 0x9E3779B9) | 1;
+    for (AtomicLongArray generation : this.generations) {
+      if (contains(generation, h1, h2)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private boolean contains(AtomicLongArray generation, int h1, int h2) {
+    for (int i = 0; i < this.hashes; i++) {
+      int bit = ((h1 + i * h2) & Integer.MAX_VALUE) % this.bits;
+      if ((generation.get(bit >>> 6) & (1L << bit)) == 0) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * 进入新的时间片时清空过期的代，返回当前时间片序号
+   */
+  private long rotate() {
+    long now = System.currentTimeMillis() / this.sliceMillis;
+    if (now == this.epoch) {
+      return now;
+    }
+    synchronized (this) {
+      long current = this.epoch;
+      if (now > current) {
+        long from = Math.max(current + 1, now - GENERATIONS + 1);
+        for (long e = from; e <= now; e++) {
+          AtomicLongArray generation = this.generations[(int) (e % GENERATIONS)];
+          for (int i = 0; i < generation.length(); i++) {
+            generation.set(i, 0L);
+          }
+        }
+        this.epoch = now;
+      }
+    }
+    return now;
+  }
+
+  /**
+   * murmur3 fmix32
+   */
+  private static int mix(int h) {
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    h *= 0xc2b2ae35;
+    h ^= h >>> 16;
+    return h;
+  }
+}
@@ -0,0 +1,50 @@
+package org.happy.esw;
+
+/**
+ * 窗口中元素的只读快照
+ *
+ * @author huangzhonghui
+ */
+public class WindowEntry<K, V> {
+
+  private final K key;
+  private final V value;
+  /**
+   * 到期时间，单位 TimeUnit.MILLISECONDS
+   */
+  private final long deadline;
+
+  public WindowEntry(K key, V value, long deadline) {
+    this.key = key;
+    this.value = value;
+    this.deadline = deadline;
+  }
+
+  public K getKey() {
+    return key;
+  }
+
+  public V getValue() {
+    return value;
+  }
+
+  public long getDeadline() {
+    return deadline;
+  }
+
+  /**
+   * 距离到期的剩余时长，单位 TimeUnit.MILLISECONDS，已到期未清理时为负数
+   */
+  public long getRemainingMillis() {
+    return deadline - System.currentTimeMillis();
+  }
+
+  @Override
+  public String toString() {
+    return "WindowEntry{" +
+        "key=" + key +
+        ", value=" + value +
+        ", deadline=" + deadline +
+        '}';
+  }
+}
@@ -0,0 +1,38 @@
+package org.happy.esw.cluster;
+
+/**
+ * 集群容量协调者SPI，负责在多个节点之间分配同一个全局容量。
+ * <p>
+ * 实现方可基于注册中心、数据库或Redis等实现，需保证：
+ * <ol>
+ *   <li>所有节点租借的容量（或节点当前已占用的容量，取较大者）之和不超过全局容量；</li>
+ *   <li>节点租约到期未续约时，回收其租借的容量；</li>
+ *   <li>租约返回相对的有效时长（{@link CapacityLease#getTtlMillis()}），回收时间不早于受理租借的时刻加上该时长。
+ *   节点以调用{@link #acquire(String, int, int)}之前的本地单调时钟为起点计算到期时间，并预留安全余量，
+ *   因此节点总是先于协调者认为租约已到期，不依赖节点与协调者之间的时钟同步。</li>
+ * </ol>
+ *
+ * @author huangzhonghui
+ */
+public interface CapacityCoordinator {
+
+  /**
+   * 租借或续约容量，协调者根据各节点上报的需求重新分配容量
+   *
+   * @param nodeId 节点标识
+   * @param demand 节点当前的容量需求
+   * @param inUse  节点当前已占用的容量
+   * @return 租约
+   * @throws Exception 异常
+   */
+  CapacityLease acquire(String nodeId, int demand, int inUse) throws Exception;
+
+  /**
+   * 主动归还节点租借的全部容量
+   *
+   * @param nodeId 节点标识
+   * @throws Exception 异常
+   */
+  void release(String nodeId) throws Exception;
+
+}
@@ -0,0 +1,48 @@
+package org.happy.esw.cluster;
+
+/**
+ * 节点从协调者处租借的窗口容量
+ *
+ * @author huangzhonghui
+ */
+public class CapacityLease {
+
+  private final String nodeId;
+  /**
+   * 租借到的容量
+   */
+  private final int permits;
+  /**
+   * 租约的有效时长，单位 TimeUnit.MILLISECONDS，从协调者受理本次租借时算起，到期未续约时容量会被协调者回收。
+   * <p>
+   * 采用相对时长而非绝对时间，节点不依赖与协调者之间的时钟同步。
+   */
+  private final long ttlMillis;
+
+  public CapacityLease(String nodeId, int permits, long ttlMillis) {
+    this.nodeId = nodeId;
+    this.permits = permits;
+    this.ttlMillis = ttlMillis;
+  }
+
+  public String getNodeId() {
+    return nodeId;
+  }
+
+  public int getPermits() {
+    return permits;
+  }
+
+  public long getTtlMillis() {
+    return ttlMillis;
+  }
+
+  @Override
+  public String toString() {
+    return "CapacityLease{" +
+        "nodeId=" + nodeId +
+        ", permits=" + permits +
+        ", ttlMillis=" + ttlMillis +
+        '}';
+  }
+}
@@ -0,0 +1,168 @@
+package org.happy.esw.cluster;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import lombok.extern.slf4j.Slf4j;
+import org.happy.esw.CapacityProvider;
+import org.happy.esw.ExpireSlidingWindow;
+
+/**
+ * 集群模式的窗口容量：节点通过{@link CapacityCoordinator}租借容量，并按租约时长的1/3周期续约、上报需求。
+ * <p>
+ * 需求为窗口当前已占用的容量加上一个续约周期内被拒绝的元素数量；
+ * 续约失败且本地租约已到期时，容量降为0，直到重新租借成功，以避免节点失联时超发。
+ * 本地到期时间以发起租借前的{@link System#nanoTime()}为起点，加上租约的有效时长并扣除{@link #SAFETY_MARGIN_RATIO}的安全余量，
+ * 保证节点先于协调者停止使用租约。
+ * <p>
+ * 使用方法：
+ * <pre>
+ *   esw.setCapacityProvider(new ClusterCapacity("node-1", coordinator, 3, TimeUnit.SECONDS));
+ *   esw.setup();
+ * </pre>
+ *
+ * @author huangzhonghui
+ */
+@Slf4j
+public class ClusterCapacity implements CapacityProvider {
+
+  /**
+   * 本地租约提前到期的比例，覆盖协调者受理延迟与时钟速率误差
+   */
+  static final int SAFETY_MARGIN_RATIO = 10;
+
+  private final String nodeId;
+  private final CapacityCoordinator coordinator;
+  /**
+   * 续约周期，单位 TimeUnit.MILLISECONDS
+   */
+  private final long renewMillis;
+  /**
+   * 一个续约周期内被拒绝的元素数量
+   */
+  private final AtomicInteger rejected = new AtomicInteger(0);
+
+  private volatile LocalLease lease;
+  private volatile ExpireSlidingWindow<?, ?> window;
+  /**
+   * 已停止，停止后正在执行的续约不再更新租约
+   */
+  private volatile boolean stopped;
+  private ScheduledExecutorService renewExecutor;
+
+  /**
+   * 构建集群模式的窗口容量
+   *
+   * @param nodeId      节点标识，集群内唯一
+   * @param coordinator 容量协调者
+   * @param leaseTime   租约时长，须与协调者一致
+   * @param unit        时间单位
+   */
+  public ClusterCapacity(String nodeId, CapacityCoordinator coordinator, long leaseTime, TimeUnit unit) {
+    this.nodeId = nodeId;
+    this.coordinator = coordinator;
+    this.renewMillis = Math.max(1L, TimeUnit.MILLISECONDS.convert(leaseTime, unit) / 3);
+  }
+
+  @Override
+  public int capacity() {
+    LocalLease current = this.lease;
+    if (current == null || current.deadlineNanos - System.nanoTime() <= 0L) {
+      return 0;
+    }
+    return current.lease.getPermits();
+  }
+
+  @Override
+  public void onRejected() {
+    this.rejected.incrementAndGet();
+  }
+
+  @Override
+  public synchronized void start(ExpireSlidingWindow<?, ?> window) {
+    if (this.renewExecutor != null) {
+      return;
+    }
+    this.window = window;
+    this.stopped = false;
+    this.renew();
+    this.renewExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+      Thread thread = new Thread(r);
+      thread.setDaemon(true);
+      thread.setName("ClusterCapacityRenewThread-" + this.nodeId);
+      return thread;
+    });
+    this.renewExecutor.scheduleWithFixedDelay(this::renew, this.renewMillis, this.renewMillis, TimeUnit.MILLISECONDS);
+  }
+
+  @Override
+  public synchronized void stop() {
+    if (this.renewExecutor == null) {
+      return;
+    }
+    this.stopped = true;
+    this.renewExecutor.shutdownNow();
+    try {
+      // 等待正在执行的续约结束，避免其在归还容量后重新注册节点
+      if (!this.renewExecutor.awaitTermination(this.renewMillis, TimeUnit.MILLISECONDS)) {
+        log.warn("等待续约线程结束超时 :{}", this.nodeId);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    this.renewExecutor = null;
+    this.lease = null;
+    try {
+      this.coordinator.release(this.nodeId);
+    } catch (Exception e) {
+      log.error("coordinator.release() cause unknown exception", e);
+    }
+  }
+
+  /**
+   * 当前租约，尚未租借成功时返回null
+   */
+  public CapacityLease getLease() {
+    LocalLease current = this.lease;
+    return current == null ? null : current.lease;
+  }
+
+  /**
+   * 续约并上报需求
+   */
+  void renew() {
+    if (this.stopped) {
+      return;
+    }
+    int inUse = this.window.size();
+    int demand = inUse + this.rejected.getAndSet(0);
+    // 以发起租借前的本地时间为起点，网络往返的耗时计入已消耗的有效期
+    long start = System.nanoTime();
+    try {
+      CapacityLease renewed = this.coordinator.acquire(this.nodeId, demand, inUse);
+      if (this.stopped) {
+        return;
+      }
+      long ttlMillis = renewed.getTtlMillis() - renewed.getTtlMillis() / SAFETY_MARGIN_RATIO;
+      this.lease = new LocalLease(renewed, start + TimeUnit.MILLISECONDS.toNanos(ttlMillis));
+      log.debug("续约成功 :{}", renewed);
+    } catch (Exception e) {
+      log.error("coordinator.acquire() cause unknown exception", e);
+    }
+  }
+
+  /**
+   * 租约及其按本地单调时钟计算的到期时间
+   */
+  private static final class LocalLease {
+
+    final CapacityLease lease;
+    final long deadlineNanos;
+
+    LocalLease(CapacityLease lease, long deadlineNanos) {
+      this.lease = lease;
+      this.deadlineNanos = deadlineNanos;
+    }
+  }
+}
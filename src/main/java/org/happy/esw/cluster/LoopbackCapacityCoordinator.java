@@ -0,0 +1,122 @@
+package org.happy.esw.cluster;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * 进程内的容量协调者，作为{@link CapacityCoordinator}的参考实现，可用于测试或单进程内多个窗口共享容量。
+ * <p>
+ * 分配算法：按各节点需求做最大最小公平分配（water-filling），全局容量有富余时平均分给各节点作为余量；
+ * 为保证不超发，节点实际获得的容量不超过全局容量减去其他节点已持有的容量，被收缩的节点在下次续约时归还容量。
+ *
+ * @author huangzhonghui
+ */
+@Slf4j
+public class LoopbackCapacityCoordinator implements CapacityCoordinator {
+
+  /**
+   * 全局容量
+   */
+  private final int globalCapacity;
+  /**
+   * 租约时长，单位 TimeUnit.MILLISECONDS
+   */
+  private final long leaseMillis;
+
+  private final Map<String, Node> nodes = new HashMap<>();
+
+  /**
+   * 构建一个进程内的容量协调者
+   *
+   * @param globalCapacity 全局容量
+   * @param leaseTime      租约时长
+   * @param unit           时间单位
+   */
+  public LoopbackCapacityCoordinator(int globalCapacity, long leaseTime, TimeUnit unit) {
+    this.globalCapacity = globalCapacity;
+    this.leaseMillis = TimeUnit.MILLISECONDS.convert(leaseTime, unit);
+  }
+
+  @Override
+  public synchronized CapacityLease acquire(String nodeId, int demand, int inUse) {
+    long now = System.currentTimeMillis();
+    this.reclaim(now);
+    Node node = this.nodes.computeIfAbsent(nodeId, id -> new Node());
+    node.demand = Math.max(demand, 0);
+    node.inUse = Math.max(inUse, 0);
+
+    int held = 0;
+    for (Map.Entry<String, Node> entry : this.nodes.entrySet()) {
+      if (!entry.getKey().equals(nodeId)) {
+        held += Math.max(entry.getValue().permits, entry.getValue().inUse);
+      }
+    }
+    node.permits = Math.max(0, Math.min(this.fairShare(node), this.globalCapacity - held));
+    node.expireAt = now + this.leaseMillis;
+    return new CapacityLease(nodeId, node.permits, this.leaseMillis);
+  }
+
+  @Override
+  public synchronized void release(String nodeId) {
+    this.nodes.remove(nodeId);
+  }
+
+  /**
+   * 当前已分配出去的容量
+   */
+  public synchronized int allocated() {
+    this.reclaim(System.currentTimeMillis());
+    int allocated = 0;
+    for (Node node : this.nodes.values()) {
+      allocated += node.permits;
+    }
+    return allocated;
+  }
+
+  /**
+   * 回收租约已到期节点的容量
+   */
+  private void reclaim(long now) {
+    Iterator<Map.Entry<String, Node>> iterator = this.nodes.entrySet().iterator();
+    while (iterator.hasNext()) {
+      Map.Entry<String, Node> entry = iterator.next();
+      if (entry.getValue().expireAt <= now) {
+        log.info("节点租约已过期，回收容量 {} for :{}", entry.getValue().permits, entry.getKey());
+        iterator.remove();
+      }
+    }
+  }
+
+  /**
+   * 最大最小公平分配，返回指定节点应得的容量
+   */
+  private int fairShare(Node target) {
+    List<Node> sorted = new ArrayList<>(this.nodes.values());
+    sorted.sort((a, b) -> Integer.compare(a.demand, b.demand));
+    int remaining = this.globalCapacity;
+    int share = 0;
+    for (int i = 0; i < sorted.size(); i++) {
+      Node node = sorted.get(i);
+      int allocation = Math.min(node.demand, remaining / (sorted.size() - i));
+      remaining -= allocation;
+      if (node == target) {
+        share = allocation;
+      }
+    }
+    // 富余的容量平均分配，便于需求增长时无需等待续约
+    return share + remaining / sorted.size();
+  }
+
+  private static final class Node {
+
+    int demand;
+    int inUse;
+    int permits;
+    long expireAt;
+  }
+}
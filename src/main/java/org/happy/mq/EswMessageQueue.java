@@ -1,46 +1,126 @@
 package org.happy.mq;
 
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import lombok.extern.slf4j.Slf4j;
 import org.happy.esw.ExpireSlidingWindow;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
 
 /**
  * 带滑动窗口的消息队列
+ * <p>
+ * 除阻塞式的{@link #put(KvMessage)}与{@link #takeAndSend(MessageSender, int)}外，还提供Reactive Streams适配：
+ * {@link #subscriber()}订阅上游消息，{@link #publisher()}向下游推送消息，发送成功后调用{@link #ack(Object)}释放窗口。
+ * JDK9+可通过{@code org.reactivestreams.FlowAdapters}转换为{@code java.util.concurrent.Flow}接口。
  *
  * @param <K> 消息的Key类型
  * @param <V> 消息的Value类型
  */
 @Slf4j
-public class EswMessageQueue<K, V extends KvMessage<K>> {
+public class EswMessageQueue<K, V extends KvMessage<K>> implements AutoCloseable {
 
   private final BlockingQueue<V> queue;
   private final ExpireSlidingWindow<K, V> esw;
   private final Lock putLock = new ReentrantLock();
+  /**
+   * 关闭时等待队列被取空
+   */
+  private final Lock closeLock = new ReentrantLock();
+  private final Condition emptied = closeLock.newCondition();
+  private final EswPublisher<V> publisher;
+  /**
+   * 队列腾出空间（消息被取走或投递结束）时的监听器
+   */
+  private final CopyOnWriteArrayList<Runnable> roomListeners = new CopyOnWriteArrayList<>();
+  private volatile boolean closed;
 
   public EswMessageQueue(BlockingQueue<V> queue, ExpireSlidingWindow<K, V> esw) {
     this.queue = queue;
     this.esw = esw;
+    this.publisher = new EswPublisher<>(queue, this::dequeued);
     this.esw.setup();
   }
 
+  /**
+   * 使用内置的无锁环形队列构建消息队列，队列容量与滑动窗口容量一致（向上取整为2的幂）
+   *
+   * @param esw          滑动窗口
+   * @param waitStrategy 队列满或空时的等待策略
+   */
+  public EswMessageQueue(ExpireSlidingWindow<K, V> esw, WaitStrategy waitStrategy) {
+    this(new RingBufferQueue<>(esw.getWindowCapacity(), waitStrategy), esw);
+  }
+
   /**
    * 投递消息。
    * <p>
    * 滑动窗口未满时会阻塞方法，直到消息成功加入到窗口。
    * <p>
-   * 滑动窗口满时，方法不阻塞，消息采用担保机制处理。
+   * 滑动窗口满时，方法不阻塞，消息采用担保机制处理；窗口开启去重模式时，最近已完成的重复消息同样不会入队。
+   *
+   * @return true 消息已进入窗口与队列，false 消息被窗口拒绝（窗口已满或重复消息）
+   * @throws IllegalStateException 消息队列已关闭
    */
-  public void put(V value) throws InterruptedException {
+  public boolean put(V value) throws InterruptedException {
+    if (closed) {
+      throw new IllegalStateException("消息队列已关闭");
+    }
     putLock.lock();
     try {
+      // 等待投递锁期间队列被关闭
+      if (closed) {
+        throw new IllegalStateException("消息队列已关闭");
+      }
       if (esw.put(value.getKey(), value)) {
         queue.put(value);
+      } else {
+        return false;
+      }
+    } finally {
+      putLock.unlock();
+      this.fireRoom();
+    }
+    publisher.signal();
+    return true;
+  }
+
+  /**
+   * 非阻塞投递，供{@link EswSubscriber}使用：队列没有空间或其他生产者正持有投递锁时立即返回，不占用窗口。
+   *
+   * @throws IllegalStateException 消息队列已关闭
+   */
+  Offer offer(V value) {
+    if (closed) {
+      throw new IllegalStateException("消息队列已关闭");
+    }
+    // 投递锁被占用时，持有者可能正阻塞在已满的队列上
+    if (!putLock.tryLock()) {
+      return Offer.NO_ROOM;
+    }
+    try {
+      if (closed) {
+        throw new IllegalStateException("消息队列已关闭");
+      }
+      // 所有入队均在投递锁内进行，此处有空间则随后的offer一定成功
+      if (queue.remainingCapacity() == 0) {
+        return Offer.NO_ROOM;
+      }
+      if (!esw.put(value.getKey(), value)) {
+        return Offer.REJECTED;
+      }
+      if (!queue.offer(value)) {
+        log.error("队列拒绝入队，消息仅保留在窗口中直至过期 for :{}", value.getKey());
       }
     } finally {
       putLock.unlock();
     }
+    publisher.signal();
+    return Offer.ENQUEUED;
   }
 
   /**
@@ -55,6 +135,7 @@ public class EswMessageQueue<K, V extends KvMessage<K>> {
    */
   public int takeAndSend(MessageSender<V> sender, int successFlag) throws Exception {
     V message = queue.take();
+    this.dequeued();
     int result = sender.send(message);
     if (successFlag == result) {
       esw.remove(message.getKey());
@@ -62,6 +143,156 @@ public class EswMessageQueue<K, V extends KvMessage<K>> {
     return result;
   }
 
+  /**
+   * 队列消息的发布者，按订阅者的需求推送消息，订阅者（即消息发送方）发送成功后须调用{@link #ack(Object)}释放窗口，
+   * 否则消息会一直占用窗口直至过期。
+   * <p>
+   * 多个订阅者之间竞争消费，与{@link #takeAndSend(MessageSender, int)}也可同时使用。
+   */
+  public Publisher<V> publisher() {
+    return this.publisher;
+  }
+
+  /**
+   * 创建一个订阅上游消息的订阅者，向上游请求的数量不超过滑动窗口的空闲槽位与队列的剩余空间，
+   * 窗口有槽位释放或队列中的消息被取走后才会继续请求，投递过程不阻塞任何线程。
+   */
+  public Subscriber<V> subscriber() {
+    return new EswSubscriber<>(this, this.esw);
+  }
+
+  /**
+   * 确认消息发送成功，从滑动窗口中移除
+   *
+   * @param key 消息的Key
+   * @return 被移除的消息，不在窗口中时返回null
+   */
+  public V ack(K key) {
+    return this.esw.remove(key);
+  }
+
+  /**
+   * 立即关闭消息队列：不再接受新消息，滑动窗口中剩余的消息立即执行expireCallback，队列中的消息被丢弃，
+   * 并通知{@link #publisher()}的订阅者结束。
+   */
+  @Override
+  public void close() {
+    this.close(0L, TimeUnit.MILLISECONDS);
+  }
+
+  /**
+   * 优雅关闭消息队列：不再接受新消息，在超时时间内等待消费者取走队列中的消息、并等待滑动窗口中的消息被确认或过期，
+   * 超时后按{@link #close()}处理剩余消息。
+   * <p>
+   * 阻塞在{@link #takeAndSend(MessageSender, int)}中的消费者线程需由调用方中断。
+   *
+   * @param timeout 等待时长
+   * @param unit    时间单位
+   * @return true 超时前所有消息均已处理完毕
+   */
+  public boolean close(long timeout, TimeUnit unit) {
+    this.closed = true;
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    closeLock.lock();
+    try {
+      long nanos = deadline - System.nanoTime();
+      while (!queue.isEmpty() && nanos > 0L) {
+        nanos = emptied.awaitNanos(nanos);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      closeLock.unlock();
+    }
+    // 先清空一次，唤醒持有投递锁、阻塞在已满队列上的生产者
+    int dropped = this.discard();
+    boolean drained;
+    putLock.lock();
+    try {
+      // 此后的投递均会在锁内发现队列已关闭，不会再进入窗口与队列
+      dropped += this.discard();
+      drained = esw.close(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+    } finally {
+      putLock.unlock();
+    }
+    publisher.complete();
+    // 通知订阅者将暂存的消息交给担保机制处理
+    this.fireRoom();
+    if (dropped > 0) {
+      log.warn("消息队列关闭，丢弃队列中 {} 条消息", dropped);
+    }
+    return drained && dropped == 0;
+  }
+
+  /**
+   * 队列的剩余空间
+   */
+  int remainingCapacity() {
+    return this.queue.remainingCapacity();
+  }
+
+  void addRoomListener(Runnable listener) {
+    this.roomListeners.add(listener);
+  }
+
+  void removeRoomListener(Runnable listener) {
+    this.roomListeners.remove(listener);
+  }
+
+  /**
+   * 消息被消费者取走后调用
+   */
+  private void dequeued() {
+    this.fireRoom();
+    if (closed && queue.isEmpty()) {
+      closeLock.lock();
+      try {
+        emptied.signalAll();
+      } finally {
+        closeLock.unlock();
+      }
+    }
+  }
+
+  /**
+   * 丢弃队列中的消息，返回丢弃的数量
+   */
+  private int discard() {
+    int count = 0;
+    while (queue.poll() != null) {
+      count++;
+    }
+    return count;
+  }
+
+  private void fireRoom() {
+    for (Runnable listener : this.roomListeners) {
+      try {
+        listener.run();
+      } catch (Exception e) {
+        log.error("roomListener.run() cause unknown exception", e);
+      }
+    }
+  }
+
+  /**
+   * 非阻塞投递的结果
+   */
+  enum Offer {
+    /**
+     * 已进入窗口与队列
+     */
+    ENQUEUED,
+    /**
+     * 被窗口拒绝，已按担保机制或重复消息回调处理
+     */
+    REJECTED,
+    /**
+     * 队列暂无空间，未占用窗口，可稍后重试
+     */
+    NO_ROOM
+  }
+
   /**
    * 消息队列的消息数量
    */
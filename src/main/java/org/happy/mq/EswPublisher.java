@@ -0,0 +1,149 @@
+package org.happy.mq;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.extern.slf4j.Slf4j;
+import org.reactivestreams.Publisher;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+/**
+ * 将消息队列中的消息按订阅者的需求（request(n)）推送出去，不阻塞任何线程。
+ * <p>
+ * 多个订阅者之间竞争消费同一个队列，推送在订阅者调用request(n)的线程或投递消息的线程中进行。
+ *
+ * @param <V> 消息类型
+ */
+@Slf4j
+class EswPublisher<V> implements Publisher<V> {
+
+  private final BlockingQueue<V> queue;
+  /**
+   * 消息被取走后调用，通知上游队列有了空间
+   */
+  private final Runnable dequeued;
+  private final CopyOnWriteArrayList<QueueSubscription> subscriptions = new CopyOnWriteArrayList<>();
+
+  EswPublisher(BlockingQueue<V> queue, Runnable dequeued) {
+    this.queue = queue;
+    this.dequeued = dequeued;
+  }
+
+  @Override
+  public void subscribe(Subscriber<? super V> subscriber) {
+    if (subscriber == null) {
+      throw new NullPointerException("subscriber不能为空");
+    }
+    QueueSubscription subscription = new QueueSubscription(subscriber);
+    this.subscriptions.add(subscription);
+    subscriber.onSubscribe(subscription);
+  }
+
+  /**
+   * 有新消息入队时调用
+   */
+  void signal() {
+    for (QueueSubscription subscription : this.subscriptions) {
+      subscription.drain();
+    }
+  }
+
+  /**
+   * 通知所有订阅者不会再有新消息
+   */
+  void complete() {
+    for (QueueSubscription subscription : this.subscriptions) {
+      subscription.complete();
+    }
+  }
+
+  private final class QueueSubscription implements Subscription {
+
+    private final Subscriber<? super V> subscriber;
+    private final AtomicLong requested = new AtomicLong(0);
+    private final AtomicInteger wip = new AtomicInteger(0);
+    private volatile boolean cancelled;
+    private volatile boolean completed;
+    private volatile Throwable error;
+
+    QueueSubscription(Subscriber<? super V> subscriber) {
+      this.subscriber = subscriber;
+    }
+
+    @Override
+    public void request(long n) {
+      if (n <= 0) {
+        this.error = new IllegalArgumentException("request(n)的参数须为正数: " + n);
+        this.completed = true;
+      } else {
+        long current;
+        long next;
+        do {
+          current = this.requested.get();
+          next = current + n < 0 ? Long.MAX_VALUE : current + n;
+        } while (!this.requested.compareAndSet(current, next));
+      }
+      this.drain();
+    }
+
+    @Override
+    public void cancel() {
+      this.cancelled = true;
+      subscriptions.remove(this);
+    }
+
+    void complete() {
+      this.completed = true;
+      this.drain();
+    }
+
+    /**
+     * 按需求推送消息，通过wip保证onNext串行调用
+     */
+    void drain() {
+      if (this.wip.getAndIncrement() != 0) {
+        return;
+      }
+      int missed = 1;
+      for (; ; ) {
+        long r = this.requested.get();
+        long e = 0;
+        while (e != r && !this.cancelled && this.error == null) {
+          V message = queue.poll();
+          if (message == null) {
+            break;
+          }
+          try {
+            this.subscriber.onNext(message);
+          } catch (Throwable t) {
+            log.error("subscriber.onNext() cause unknown exception", t);
+            this.cancel();
+            return;
+          }
+          e++;
+        }
+        if (e != 0 && r != Long.MAX_VALUE) {
+          this.requested.addAndGet(-e);
+        }
+        if (e != 0) {
+          dequeued.run();
+        }
+        if (!this.cancelled && this.completed && (this.error != null || queue.isEmpty())) {
+          this.cancel();
+          if (this.error != null) {
+            this.subscriber.onError(this.error);
+          } else {
+            this.subscriber.onComplete();
+          }
+          return;
+        }
+        missed = this.wip.addAndGet(-missed);
+        if (missed == 0) {
+          return;
+        }
+      }
+    }
+  }
+}
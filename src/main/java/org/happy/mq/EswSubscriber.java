@@ -0,0 +1,167 @@
+package org.happy.mq;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.extern.slf4j.Slf4j;
+import org.happy.esw.ExpireSlidingWindow;
+import org.happy.mq.EswMessageQueue.Offer;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
+
+/**
+ * 订阅上游消息并投递到消息队列，向上游请求的数量不超过滑动窗口的空闲槽位与队列的剩余空间，
+ * 窗口释放槽位或队列中的消息被取走后再继续请求，实现端到端的背压。
+ * <p>
+ * 投递采用非阻塞的{@link EswMessageQueue#offer(KvMessage)}，暂时无法入队的消息在本地暂存，待有空间时重试，
+ * 因此不会阻塞上游线程，也不会阻塞触发槽位释放的过期调度线程。
+ * <p>
+ * 上游结束后，暂存的消息仍会继续重试直至全部入队；上游异常或消息队列关闭时，暂存的消息交给窗口的rateLimitingCallback处理。
+ *
+ * @param <K> 消息的Key类型
+ * @param <V> 消息的Value类型
+ */
+@Slf4j
+class EswSubscriber<K, V extends KvMessage<K>> implements Subscriber<V> {
+
+  private final EswMessageQueue<K, V> eswMQ;
+  private final ExpireSlidingWindow<K, V> esw;
+  /**
+   * 已向上游请求但尚未投递完成的消息数量，包含暂存的消息
+   */
+  private final AtomicLong outstanding = new AtomicLong(0);
+  /**
+   * 已收到但暂时无法入队的消息，数量不超过outstanding
+   */
+  private final Queue<V> pending = new ConcurrentLinkedQueue<>();
+  private final AtomicInteger wip = new AtomicInteger(0);
+  private final Runnable releaseListener = this::drain;
+  private volatile Subscription upstream;
+  /**
+   * 上游已结束（onComplete）
+   */
+  private volatile boolean completed;
+  /**
+   * 上游已出错（onError）
+   */
+  private volatile boolean failed;
+  /**
+   * 订阅已结束，监听器已注销
+   */
+  private volatile boolean done;
+
+  EswSubscriber(EswMessageQueue<K, V> eswMQ, ExpireSlidingWindow<K, V> esw) {
+    this.eswMQ = eswMQ;
+    this.esw = esw;
+  }
+
+  @Override
+  public void onSubscribe(Subscription subscription) {
+    if (this.upstream != null) {
+      subscription.cancel();
+      return;
+    }
+    this.upstream = subscription;
+    this.esw.addReleaseListener(this.releaseListener);
+    this.eswMQ.addRoomListener(this.releaseListener);
+    this.drain();
+  }
+
+  @Override
+  public void onNext(V message) {
+    this.pending.offer(message);
+    this.drain();
+  }
+
+  @Override
+  public void onError(Throwable t) {
+    log.error("upstream publisher cause unknown exception", t);
+    this.failed = true;
+    this.drain();
+  }
+
+  @Override
+  public void onComplete() {
+    this.completed = true;
+    this.drain();
+  }
+
+  private void terminate() {
+    this.done = true;
+    this.esw.removeReleaseListener(this.releaseListener);
+    this.eswMQ.removeRoomListener(this.releaseListener);
+  }
+
+  /**
+   * 暂存的消息交给窗口的担保机制处理
+   */
+  private void rejectPending() {
+    V message;
+    while ((message = this.pending.poll()) != null) {
+      this.outstanding.decrementAndGet();
+      if (!this.esw.reject(message.getKey(), message)) {
+        log.warn("未设置rateLimitingCallback，丢弃无法投递的消息 for :{}", message.getKey());
+      }
+    }
+  }
+
+  /**
+   * 投递暂存的消息，再按窗口空闲槽位与队列剩余空间向上游请求消息，通过wip保证串行执行
+   */
+  private void drain() {
+    if (this.wip.getAndIncrement() != 0) {
+      return;
+    }
+    int missed = 1;
+    for (; ; ) {
+      if (this.done) {
+        return;
+      }
+      if (this.failed) {
+        this.rejectPending();
+        this.terminate();
+        return;
+      }
+      V message;
+      while ((message = this.pending.peek()) != null) {
+        Offer result;
+        try {
+          result = this.eswMQ.offer(message);
+        } catch (IllegalStateException e) {
+          log.warn("消息队列已关闭，取消订阅上游，暂存的 {} 条消息交给rateLimitingCallback处理", this.pending.size());
+          this.rejectPending();
+          this.terminate();
+          if (!this.completed) {
+            this.upstream.cancel();
+          }
+          return;
+        }
+        if (result == Offer.NO_ROOM) {
+          break;
+        }
+        // 入队或被窗口拒绝（已按担保机制处理）后才扣减，避免并发计算空闲量时多请求
+        this.pending.poll();
+        this.outstanding.decrementAndGet();
+      }
+      if (this.completed) {
+        // 上游已结束，暂存的消息全部入队后才注销监听器
+        if (this.pending.isEmpty()) {
+          this.terminate();
+          return;
+        }
+      } else {
+        long free = Math.min(this.esw.capacity() - this.esw.size(), this.eswMQ.remainingCapacity())
+            - this.outstanding.get();
+        if (free > 0) {
+          this.outstanding.addAndGet(free);
+          this.upstream.request(free);
+        }
+      }
+      missed = this.wip.addAndGet(-missed);
+      if (missed == 0) {
+        return;
+      }
+    }
+  }
+}
@@ -0,0 +1,285 @@
+package org.happy.mq;
+
+import java.util.AbstractQueue;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 有界无锁的多生产者多消费者环形队列
+ * <p>
+ * 容量为2的幂，预先分配，入队出队不创建节点对象。每个槽位带有序号（Disruptor风格），生产者与消费者分别通过CAS推进
+ * 各自填充了缓存行的序号，互不加锁；队列满或空时按{@link WaitStrategy}等待。
+ * <p>
+ * 与{@link EswMessageQueue}配合使用时，滑动窗口已限制了在途消息的数量，队列容量与窗口容量一致即可。
+ * <p>
+ * 只支持从队头出队，不支持删除队列中间的元素：{@link #remove(Object)}、{@link #removeAll(Collection)}、
+ * {@link #retainAll(Collection)}及迭代器的remove均抛出UnsupportedOperationException。
+ *
+ * @param <E> 元素类型
+ * @author huangzhonghui
+ */
+public class RingBufferQueue<E> extends AbstractQueue<E> implements BlockingQueue<E> {
+
+  private final int capacity;
+  private final int mask;
+  private final Object[] buffer;
+  /**
+   * 槽位序号：等于pos时可写入第pos个元素，等于pos+1时第pos个元素可读取
+   */
+  private final AtomicLongArray sequences;
+  /**
+   * 下一个写入位置
+   */
+  private final Sequence tail = new Sequence(0L);
+  /**
+   * 下一个读取位置
+   */
+  private final Sequence head = new Sequence(0L);
+  private final WaitStrategy waitStrategy;
+
+  /**
+   * 构建一个环形队列
+   *
+   * @param capacity     容量，向上取整为2的幂
+   * @param waitStrategy 队列满或空时的等待策略
+   */
+  public RingBufferQueue(int capacity, WaitStrategy waitStrategy) {
+    if (capacity <= 0 || capacity > (1 << 30)) {
+      throw new IllegalArgumentException("容量须在(0, 2^30]之间: " + capacity);
+    }
+    this.capacity = capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+    this.mask = this.capacity - 1;
+    this.buffer = new Object[this.capacity];
+    this.sequences = new AtomicLongArray(this.capacity);
+    for (int i = 0; i < this.capacity; i++) {
+      this.sequences.set(i, i);
+    }
+    this.waitStrategy = waitStrategy;
+  }
+
+  @Override
+  public boolean offer(E e) {
+    if (e == null) {
+      throw new NullPointerException();
+    }
+    long pos;
+    int index;
+    for (; ; ) {
+      pos = this.tail.get();
+      index = (int) pos & this.mask;
+      long diff = this.sequences.get(index) - pos;
+      if (diff == 0) {
+        if (this.tail.compareAndSet(pos, pos + 1)) {
+          break;
+        }
+      } else if (diff < 0) {
+        // 队列已满
+        return false;
+      }
+    }
+    this.buffer[index] = e;
+    // 发布元素
+    this.sequences.lazySet(index, pos + 1);
+    return true;
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public E poll() {
+    long pos;
+    int index;
+    for (; ; ) {
+      pos = this.head.get();
+      index = (int) pos & this.mask;
+      long diff = this.sequences.get(index) - (pos + 1);
+      if (diff == 0) {
+        if (this.head.compareAndSet(pos, pos + 1)) {
+          break;
+        }
+      } else if (diff < 0) {
+        // 队列为空
+        return null;
+      }
+    }
+    E e = (E) this.buffer[index];
+    this.buffer[index] = null;
+    // 槽位留给下一圈的生产者
+    this.sequences.lazySet(index, pos + this.capacity);
+    return e;
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public E peek() {
+    for (; ; ) {
+      long pos = this.head.get();
+      int index = (int) pos & this.mask;
+      if (this.sequences.get(index) != pos + 1) {
+        return null;
+      }
+      E e = (E) this.buffer[index];
+      if (e != null && this.head.get() == pos) {
+        return e;
+      }
+    }
+  }
+
+  @Override
+  public void put(E e) throws InterruptedException {
+    int attempt = 0;
+    while (!this.offer(e)) {
+      if (Thread.interrupted()) {
+        throw new InterruptedException();
+      }
+      this.waitStrategy.idle(attempt++);
+    }
+  }
+
+  @Override
+  public boolean offer(E e, long timeout, TimeUnit unit) throws InterruptedException {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    int attempt = 0;
+    while (!this.offer(e)) {
+      if (Thread.interrupted()) {
+        throw new InterruptedException();
+      }
+      if (deadline - System.nanoTime() <= 0L) {
+        return false;
+      }
+      this.waitStrategy.idle(attempt++);
+    }
+    return true;
+  }
+
+  @Override
+  public E take() throws InterruptedException {
+    int attempt = 0;
+    E e;
+    while ((e = this.poll()) == null) {
+      if (Thread.interrupted()) {
+        throw new InterruptedException();
+      }
+      this.waitStrategy.idle(attempt++);
+    }
+    return e;
+  }
+
+  @Override
+  public E poll(long timeout, TimeUnit unit) throws InterruptedException {
+    long deadline = System.nanoTime() + unit.toNanos(timeout);
+    int attempt = 0;
+    E e;
+    while ((e = this.poll()) == null) {
+      if (Thread.interrupted()) {
+        throw new InterruptedException();
+      }
+      if (deadline - System.nanoTime() <= 0L) {
+        return null;
+      }
+      this.waitStrategy.idle(attempt++);
+    }
+    return e;
+  }
+
+  @Override
+  public int size() {
+    // 先读head再读tail，保证差值不为负
+    long h = this.head.get();
+    long t = this.tail.get();
+    return (int) Math.max(0L, Math.min(this.capacity, t - h));
+  }
+
+  @Override
+  public boolean isEmpty() {
+    return this.size() == 0;
+  }
+
+  @Override
+  public int remainingCapacity() {
+    return this.capacity - this.size();
+  }
+
+  @Override
+  public int drainTo(Collection<? super E> c) {
+    return this.drainTo(c, Integer.MAX_VALUE);
+  }
+
+  @Override
+  public int drainTo(Collection<? super E> c, int maxElements) {
+    if (c == this) {
+      throw new IllegalArgumentException();
+    }
+    int n = 0;
+    E e;
+    while (n < maxElements && (e = this.poll()) != null) {
+      c.add(e);
+      n++;
+    }
+    return n;
+  }
+
+  /**
+   * 不支持删除队列中间的元素
+   *
+   * @throws UnsupportedOperationException 总是抛出
+   */
+  @Override
+  public boolean remove(Object o) {
+    throw new UnsupportedOperationException("RingBufferQueue不支持remove(Object)");
+  }
+
+  /**
+   * 不支持删除队列中间的元素
+   *
+   * @throws UnsupportedOperationException 总是抛出
+   */
+  @Override
+  public boolean removeAll(Collection<?> c) {
+    throw new UnsupportedOperationException("RingBufferQueue不支持removeAll(Collection)");
+  }
+
+  /**
+   * 不支持删除队列中间的元素
+   *
+   * @throws UnsupportedOperationException 总是抛出
+   */
+  @Override
+  public boolean retainAll(Collection<?> c) {
+    throw new UnsupportedOperationException("RingBufferQueue不支持retainAll(Collection)");
+  }
+
+  /**
+   * 返回当前元素的快照，不支持remove
+   */
+  @Override
+  @SuppressWarnings("unchecked")
+  public Iterator<E> iterator() {
+    List<E> snapshot = new ArrayList<>(this.size());
+    long h = this.head.get();
+    long t = this.tail.get();
+    for (long pos = h; pos < t; pos++) {
+      int index = (int) pos & this.mask;
+      if (this.sequences.get(index) == pos + 1) {
+        Object e = this.buffer[index];
+        // 读取期间槽位未被消费
+        if (e != null && this.sequences.get(index) == pos + 1) {
+          snapshot.add((E) e);
+        }
+      }
+    }
+    return Collections.unmodifiableList(snapshot).iterator();
+  }
+
+  /**
+   * 实际容量
+   */
+  public int capacity() {
+    return this.capacity;
+  }
+}
@@ -0,0 +1,42 @@
+package org.happy.mq;
+
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * 填充了缓存行的序号，避免生产者序号与消费者序号位于同一缓存行造成伪共享（false sharing）
+ *
+ * @author huangzhonghui
+ */
+class Sequence extends RhsPadding {
+
+  private static final AtomicLongFieldUpdater<Value> UPDATER = AtomicLongFieldUpdater.newUpdater(Value.class, "value");
+
+  Sequence(long initial) {
+    this.value = initial;
+  }
+
+  long get() {
+    return this.value;
+  }
+
+  boolean compareAndSet(long expect, long update) {
+    return UPDATER.compareAndSet(this, expect, update);
+  }
+}
+
+@SuppressWarnings("unused")
+class LhsPadding {
+
+  protected long p1, p2, p3, p4, p5, p6, p7;
+}
+
+class Value extends LhsPadding {
+
+  protected volatile long value;
+}
+
+@SuppressWarnings("unused")
+class RhsPadding extends Value {
+
+  protected long p9, p10, p11, p12, p13, p14, p15;
+}
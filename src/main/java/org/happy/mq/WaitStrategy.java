@@ -0,0 +1,56 @@
+package org.happy.mq;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * {@link RingBufferQueue}在队列满（生产者）或空（消费者）时的等待策略
+ *
+ * @author huangzhonghui
+ */
+public enum WaitStrategy {
+
+  /**
+   * 忙等，交接延迟最低，但等待期间占满一个CPU核心，适用于线程数不超过CPU核数的场景
+   */
+  SPIN {
+    @Override
+    void idle(int attempt) {
+      // 忙等
+    }
+  },
+
+  /**
+   * 让出CPU，延迟与CPU占用折中
+   */
+  YIELD {
+    @Override
+    void idle(int attempt) {
+      Thread.yield();
+    }
+  },
+
+  /**
+   * 先短暂自旋，再按指数退避挂起线程（最长1毫秒），CPU占用最低
+   */
+  PARK {
+    @Override
+    void idle(int attempt) {
+      if (attempt < SPIN_TRIES) {
+        return;
+      }
+      int shift = Math.min(attempt - SPIN_TRIES, 10);
+      LockSupport.parkNanos(Math.min(MAX_PARK_NANOS, 1000L << shift));
+    }
+  };
+
+  private static final int SPIN_TRIES = 100;
+  private static final long MAX_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+  /**
+   * 等待一次
+   *
+   * @param attempt 本次等待前已连续等待的次数
+   */
+  abstract void idle(int attempt);
+}
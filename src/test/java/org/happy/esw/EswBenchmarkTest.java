@@ -29,6 +29,11 @@ import org.openjdk.jmh.annotations.Warmup;
 public class EswBenchmarkTest {
 
   ExpireSlidingWindow<String, String> esw;
+  /**
+   * 预先生成的key，排除生成随机字符串的开销，配合 -prof gc 观察put/remove本身的内存分配
+   */
+  String[] keys;
+  int keyIndex;
 
   @Setup(Level.Trial)
   public void setup() {
@@ -41,6 +46,10 @@ public class EswBenchmarkTest {
         (key, value) -> log.info("send to MQ : <{},{}> ", key, value)
     );
     esw.setup();
+    keys = new String[1024];
+    for (int i = 0; i < keys.length; i++) {
+      keys[i] = RandomStringUtils.randomAlphabetic(24);
+    }
   }
 
   Lock benchLock = new ReentrantLock();
@@ -70,4 +79,18 @@ public class EswBenchmarkTest {
       lock.unlock();
     }
   }
+
+  Lock preparedLock = new ReentrantLock();
+
+  @Benchmark
+  public void benchOfEswPreparedKeys() {
+    preparedLock.lock();
+    try {
+      String key = keys[keyIndex++ & (keys.length - 1)];
+      esw.put(key, key);
+      esw.remove(key);
+    } finally {
+      preparedLock.unlock();
+    }
+  }
 }
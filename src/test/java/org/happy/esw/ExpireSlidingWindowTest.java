@@ -1,6 +1,17 @@
 package org.happy.esw;
 
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 import lombok.extern.slf4j.Slf4j;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -134,4 +145,353 @@ class ExpireSlidingWindowTest {
     assert !esw.containsKey("hello1");
   }
 
-}
\ No newline at end of file
+  @Test
+  void groupQuotas() {
+    ExpireSlidingWindow<String, Integer> window = new ExpireSlidingWindow<>(
+        "QUOTA", 6, 1, TimeUnit.SECONDS, null, (key, value) -> log.info("rejected : {}", key));
+    Map<String, Integer> quotas = new HashMap<>();
+    quotas.put("a", 2);
+    quotas.put("b", 2);
+    // 未配置的分组归入default，使用剩余的2个容量
+    window.setGroupQuotas(key -> key.substring(0, 1), quotas, false);
+    // 动态容量为4，只统计因窗口容量不足被拒绝的元素
+    AtomicInteger demand = new AtomicInteger(0);
+    window.setCapacityProvider(new CapacityProvider() {
+      @Override
+      public int capacity() {
+        return 4;
+      }
+
+      @Override
+      public void onRejected() {
+        demand.incrementAndGet();
+      }
+    });
+    window.setup();
+
+    assert window.put("a1", 1);
+    assert window.put("a2", 2);
+    // 分组a已达配额，不影响其他分组，也不计入动态容量的需求
+    assert !window.put("a3", 3);
+    assert demand.get() == 0;
+    assert window.put("b1", 1);
+    assert window.put("c1", 1);
+    assert window.groupSize("a") == 2;
+    assert window.groupSize("b") == 1;
+    assert window.groupSize("default") == 1;
+    assert window.size() == 4;
+    // 分组b未达配额，但窗口已满
+    assert !window.put("b2", 2);
+    assert demand.get() == 1;
+
+    window.remove("a1");
+    assert window.groupSize("a") == 1;
+    assert window.put("a3", 3);
+  }
+
+  @Test
+  void groupQuotasBorrowing() {
+    ExpireSlidingWindow<String, Integer> window = new ExpireSlidingWindow<>(
+        "QUOTA", 6, 1, TimeUnit.SECONDS, null, null);
+    Map<String, Integer> quotas = new HashMap<>();
+    quotas.put("a", 2);
+    quotas.put("b", 2);
+    quotas.put("default", 0);
+    window.setGroupQuotas(key -> key.substring(0, 1), quotas, true);
+    window.setup();
+
+    // 分组a可借用2个未分配的容量，但不会占用分组b的保底配额
+    for (int i = 0; i < 4; i++) {
+      assert window.put("a" + i, i);
+    }
+    assert !window.put("a4", 4);
+    assert window.put("b1", 1);
+    assert window.put("b2", 2);
+    assert window.size() == 6;
+    assert !window.put("b3", 3);
+  }
+
+  @Test
+  void sharedExpireScheduler() throws InterruptedException {
+    ExpireScheduler scheduler = new ExpireScheduler("SharedExpireThread");
+    AtomicInteger expired = new AtomicInteger(0);
+    for (int i = 0; i < 100; i++) {
+      ExpireSlidingWindow<String, Integer> window = new ExpireSlidingWindow<>(
+          "CH" + i, 5, 100, TimeUnit.MILLISECONDS, (key, value) -> expired.incrementAndGet(), null);
+      window.setExpireScheduler(scheduler);
+      window.setup();
+      window.put("hello1", 1);
+      window.put("hello2", 2);
+    }
+    // 100个窗口共享同一个调度线程完成过期清理
+    TimeUnit.MILLISECONDS.sleep(300);
+    assert expired.get() == 200;
+
+    ExpireSlidingWindow<String, Integer> orphan = new ExpireSlidingWindow<>(
+        "ORPHAN", 5, 100, TimeUnit.MILLISECONDS, null, null);
+    orphan.setExpireScheduler(scheduler);
+    orphan.setup();
+    scheduler.shutdown();
+    assert scheduler.awaitTermination(1, TimeUnit.SECONDS);
+    // 调度器关闭后元素无法过期，put直接失败而不是让窗口逐渐被占满
+    try {
+      orphan.put("hello1", 1);
+      assert false;
+    } catch (IllegalStateException e) {
+      log.info("put after scheduler shutdown: {}", e.getMessage());
+    }
+
+    // 进程内共享的调度器不能被关闭
+    try {
+      ExpireScheduler.shared().shutdown();
+      assert false;
+    } catch (UnsupportedOperationException e) {
+      log.info("shutdown shared scheduler: {}", e.getMessage());
+    }
+    assert !ExpireScheduler.shared().isShutdown();
+  }
+
+  @Test
+  void close() throws InterruptedException {
+    AtomicInteger expired = new AtomicInteger(0);
+    ExpireSlidingWindow<String, Integer> window = new ExpireSlidingWindow<>(
+        "CLOSE", 5, 10, TimeUnit.SECONDS, (key, value) -> expired.incrementAndGet(), null);
+    window.setup();
+    window.put("hello1", 1);
+    window.put("hello2", 2);
+
+    // 立即关闭，剩余元素执行过期回调
+    window.close();
+    assert expired.get() == 2;
+    assert window.size() == 0;
+    assert window.isClosed();
+    try {
+      window.put("hello3", 3);
+      assert false;
+    } catch (IllegalStateException e) {
+      log.info("put after close: {}", e.getMessage());
+    }
+    TimeUnit.MILLISECONDS.sleep(50);
+    for (Thread thread : Thread.getAllStackTraces().keySet()) {
+      assert !thread.getName().equals("ExpireCacheCheckThread-CLOSE");
+    }
+  }
+
+  @Test
+  void closeGracefully() {
+    AtomicInteger expired = new AtomicInteger(0);
+    ExpireSlidingWindow<String, Integer> window = new ExpireSlidingWindow<>(
+        "CLOSE", 5, 200, TimeUnit.MILLISECONDS, (key, value) -> expired.incrementAndGet(), null);
+    window.setup();
+    window.put("hello1", 1);
+    window.put("hello2", 2);
+    new Thread(() -> window.remove("hello1")).start();
+
+    // hello1 被移除，hello2 在等待期间正常过期
+    assert window.close(1, TimeUnit.SECONDS);
+    assert expired.get() == 1;
+    assert window.size() == 0;
+  }
+
+  @Test
+  void closeWhileExpireCallbackRunning() throws InterruptedException {
+    AtomicInteger interrupted = new AtomicInteger(0);
+    AtomicInteger expired = new AtomicInteger(0);
+    ExpireSlidingWindow<String, Integer> window = new ExpireSlidingWindow<>(
+        "CLOSE", 5, 50, TimeUnit.MILLISECONDS, (key, value) -> {
+      try {
+        TimeUnit.MILLISECONDS.sleep(200);
+        expired.incrementAndGet();
+      } catch (InterruptedException e) {
+        interrupted.incrementAndGet();
+      }
+    }, null);
+    window.setup();
+    window.put("hello1", 1);
+    // 过期回调正在定时线程中执行时立即关闭窗口，回调不会被中断
+    TimeUnit.MILLISECONDS.sleep(100);
+    window.close();
+    assert interrupted.get() == 0;
+    assert expired.get() == 1;
+  }
+
+  @Test
+  void closeInsideExpireCallback() throws InterruptedException {
+    // 在定时线程中执行的expireCallback里关闭窗口，例如热加载配置
+    AtomicReference<ExpireSlidingWindow<String, Integer>> holder = new AtomicReference<>();
+    AtomicLong closeMillis = new AtomicLong(-1);
+    CountDownLatch closed = new CountDownLatch(1);
+    ExpireSlidingWindow<String, Integer> window = new ExpireSlidingWindow<>(
+        "CLOSE", 5, 50, TimeUnit.MILLISECONDS, (key, value) -> {
+      if (closed.getCount() > 0) {
+        long start = System.currentTimeMillis();
+        holder.get().close(2, TimeUnit.SECONDS);
+        closeMillis.set(System.currentTimeMillis() - start);
+        closed.countDown();
+      }
+    }, null);
+    holder.set(window);
+    window.setup();
+    window.put("hello1", 1);
+    assert closed.await(3, TimeUnit.SECONDS);
+    // 不等待自身所在的回调批次，也不等待自身所在的定时线程结束
+    assert closeMillis.get() < 500;
+    assert window.isClosed();
+  }
+
+  @Test
+  void deduplication() throws InterruptedException {
+    AtomicInteger rejected = new AtomicInteger(0);
+    ExpireSlidingWindow<String, Integer> window = new ExpireSlidingWindow<>(
+        "DEDUP", 5, 100, TimeUnit.MILLISECONDS, null, (key, value) -> rejected.incrementAndGet());
+    AtomicInteger duplicated = new AtomicInteger(0);
+    window.setDeduplication(300, TimeUnit.MILLISECONDS, 1000, 0.001, (key, value) -> duplicated.incrementAndGet());
+    window.setup();
+
+    assert window.put("hello1", 1);
+    // 窗口中的元素仍可续期
+    assert window.put("hello1", 1);
+    assert window.remove("hello1") == 1;
+    // 已完成的元素被拒绝，不走担保机制，执行重复元素回调
+    assert !window.put("hello1", 1);
+    assert rejected.get() == 0;
+    assert duplicated.get() == 1;
+
+    // 过期的元素未完成，允许重试
+    assert window.put("hello2", 2);
+    TimeUnit.MILLISECONDS.sleep(150);
+    assert window.put("hello2", 2);
+
+    // 超过保留时长后可再次进入窗口
+    TimeUnit.MILLISECONDS.sleep(400);
+    assert window.put("hello1", 1);
+    window.close();
+  }
+
+  @Test
+  void deduplicationRacingRemove() throws Exception {
+    ExpireSlidingWindow<PausingKey, Integer> window = new ExpireSlidingWindow<>(
+        "DEDUP", 5, 10, TimeUnit.SECONDS, null, null);
+    window.setDeduplication(10, TimeUnit.SECONDS, 1000, 0.001);
+    window.setup();
+    PausingKey key = new PausingKey("hello1");
+    assert window.put(key, 1);
+
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      // 确认线程在记录最近完成的key时暂停
+      Future<Integer> removed = executor.submit(() -> {
+        key.pauseOn(Thread.currentThread());
+        return window.remove(key);
+      });
+      assert key.paused.await(1, TimeUnit.SECONDS);
+      // 与确认并发的重试
+      Future<Boolean> retried = executor.submit(() -> window.put(key, 2));
+      TimeUnit.MILLISECONDS.sleep(100);
+      key.resume.countDown();
+      assert removed.get(1, TimeUnit.SECONDS) == 1;
+      assert !retried.get(1, TimeUnit.SECONDS);
+      assert !window.containsKey(key);
+    } finally {
+      executor.shutdownNow();
+      window.close();
+    }
+  }
+
+  /**
+   * 指定线程第2次计算hashCode时（即remove中记录最近完成的key时）暂停，直到resume
+   */
+  static class PausingKey {
+
+    final String id;
+    final CountDownLatch paused = new CountDownLatch(1);
+    final CountDownLatch resume = new CountDownLatch(1);
+    volatile Thread pauseThread;
+    int calls;
+
+    PausingKey(String id) {
+      this.id = id;
+    }
+
+    void pauseOn(Thread thread) {
+      this.pauseThread = thread;
+    }
+
+    @Override
+    public int hashCode() {
+      if (Thread.currentThread() == this.pauseThread && ++this.calls == 2) {
+        this.paused.countDown();
+        try {
+          this.resume.await(1, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      return this.id.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof PausingKey && ((PausingKey) o).id.equals(this.id);
+    }
+
+    @Override
+    public String toString() {
+      return this.id;
+    }
+  }
+
+  @Test
+  void expireGranularity() throws InterruptedException {
+    AtomicInteger expired = new AtomicInteger(0);
+    ExpireSlidingWindow<String, Integer> window = new ExpireSlidingWindow<>(
+        "GRANULARITY", 1000, 100, TimeUnit.MILLISECONDS, (key, value) -> expired.incrementAndGet(), null);
+    window.setExpireGranularity(50, TimeUnit.MILLISECONDS);
+    window.setup();
+    // 突发写入，到期时间分散在数毫秒内
+    for (int i = 0; i < 400; i++) {
+      window.put("hello" + i, i);
+      if (i % 100 == 0) {
+        TimeUnit.MILLISECONDS.sleep(1);
+      }
+    }
+    TimeUnit.MILLISECONDS.sleep(300);
+    ExpireStats stats = window.getExpireStats();
+    log.info("{}", stats);
+    assert expired.get() == 400;
+    assert stats.getExpired() == 400;
+    // 相近的到期时间被合并为少量的几次清理
+    assert stats.getWakeups() <= 3;
+    window.close();
+  }
+
+  @Test
+  void queryByDeadline() throws InterruptedException {
+    ExpireSlidingWindow<String, Integer> window = new ExpireSlidingWindow<>(
+        "QUERY", 100, 1, TimeUnit.SECONDS, null, null);
+    window.setup();
+    for (int i = 0; i < 5; i++) {
+      window.put("hello" + i, i);
+      TimeUnit.MILLISECONDS.sleep(100);
+    }
+    // 续期后hello0变为最晚到期
+    window.put("hello0", 0);
+
+    Iterator<WindowEntry<String, Integer>> iterator = window.deadlineIterator();
+    assert iterator.next().getKey().equals("hello1");
+    List<WindowEntry<String, Integer>> oldest = window.oldest(2);
+    assert oldest.size() == 2;
+    assert oldest.get(0).getKey().equals("hello1");
+    assert oldest.get(1).getKey().equals("hello2");
+
+    // hello1、hello2 剩余存活时长约600、700毫秒
+    List<WindowEntry<String, Integer>> expiring = window.expiringWithin(750, TimeUnit.MILLISECONDS);
+    assert expiring.size() == 2;
+    assert expiring.get(0).getRemainingMillis() <= expiring.get(1).getRemainingMillis();
+
+    assert window.stream().parallel().mapToInt(WindowEntry::getValue).sum() == 10;
+    assert window.stream().map(WindowEntry::getKey).reduce((a, b) -> b).get().equals("hello0");
+    window.close();
+  }
+
+}
@@ -0,0 +1,109 @@
+package org.happy.esw.cluster;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import lombok.extern.slf4j.Slf4j;
+import org.happy.esw.ExpireSlidingWindow;
+import org.junit.jupiter.api.Test;
+
+@Slf4j
+class LoopbackCapacityCoordinatorTest {
+
+  @Test
+  void fairShare() {
+    LoopbackCapacityCoordinator coordinator = new LoopbackCapacityCoordinator(12, 1, TimeUnit.SECONDS);
+    // 单个节点时，富余容量全部分给该节点
+    assert coordinator.acquire("node-1", 2, 0).getPermits() == 12;
+    // node-1 尚未归还容量，node-2 暂时拿不到
+    assert coordinator.acquire("node-2", 10, 0).getPermits() == 0;
+    // node-1 续约后按需求收缩，归还的容量在 node-2 续约时分配
+    assert coordinator.acquire("node-1", 2, 0).getPermits() == 2;
+    assert coordinator.acquire("node-2", 10, 0).getPermits() == 10;
+    assert coordinator.allocated() == 12;
+  }
+
+  @Test
+  void neverOversubscribe() {
+    LoopbackCapacityCoordinator coordinator = new LoopbackCapacityCoordinator(10, 1, TimeUnit.SECONDS);
+    assert coordinator.acquire("node-1", 10, 0).getPermits() == 10;
+    assert coordinator.acquire("node-2", 10, 0).getPermits() == 0;
+    // node-1 被收缩，但已占用的8个容量在释放前仍计入
+    assert coordinator.acquire("node-1", 0, 8).getPermits() == 0;
+    assert coordinator.acquire("node-2", 10, 0).getPermits() == 2;
+  }
+
+  @Test
+  void reclaimDeadNode() throws InterruptedException {
+    LoopbackCapacityCoordinator coordinator = new LoopbackCapacityCoordinator(10, 200, TimeUnit.MILLISECONDS);
+    assert coordinator.acquire("node-1", 10, 10).getPermits() == 10;
+    assert coordinator.acquire("node-2", 10, 0).getPermits() == 0;
+    // node-1 未续约，租约到期后容量被回收
+    TimeUnit.MILLISECONDS.sleep(250);
+    assert coordinator.acquire("node-2", 10, 0).getPermits() == 10;
+  }
+
+  @Test
+  void leaseExpiresOnLocalClock() throws InterruptedException {
+    // 协调者只在第一次租借时成功，之后失联
+    AtomicInteger calls = new AtomicInteger(0);
+    CapacityCoordinator coordinator = new CapacityCoordinator() {
+      @Override
+      public CapacityLease acquire(String nodeId, int demand, int inUse) throws Exception {
+        if (calls.getAndIncrement() > 0) {
+          throw new IllegalStateException("coordinator unreachable");
+        }
+        return new CapacityLease(nodeId, 5, 300);
+      }
+
+      @Override
+      public void release(String nodeId) {
+      }
+    };
+    ExpireSlidingWindow<String, Integer> window = new ExpireSlidingWindow<>(
+        "LEASE", 10, 5, TimeUnit.SECONDS, null, null);
+    window.setCapacityProvider(new ClusterCapacity("node-1", coordinator, 300, TimeUnit.MILLISECONDS));
+    window.setup();
+    assert window.capacity() == 5;
+    // 租约按本地单调时钟计时，并在协调者回收之前（300ms）提前到期
+    TimeUnit.MILLISECONDS.sleep(290);
+    assert window.capacity() == 0;
+    window.close();
+  }
+
+  @Test
+  void clusterWindow() throws InterruptedException {
+    LoopbackCapacityCoordinator coordinator = new LoopbackCapacityCoordinator(4, 300, TimeUnit.MILLISECONDS);
+    ExpireSlidingWindow<String, Integer> node1 = new ExpireSlidingWindow<>(
+        "NODE1", 10, 5, TimeUnit.SECONDS, null, null);
+    node1.setCapacityProvider(new ClusterCapacity("node-1", coordinator, 300, TimeUnit.MILLISECONDS));
+    node1.setup();
+    AtomicInteger rateLimited = new AtomicInteger(0);
+    ExpireSlidingWindow<String, Integer> node2 = new ExpireSlidingWindow<>(
+        "NODE2", 10, 5, TimeUnit.SECONDS, null, (k, v) -> rateLimited.incrementAndGet());
+    ClusterCapacity capacity2 = new ClusterCapacity("node-2", coordinator, 300, TimeUnit.MILLISECONDS);
+    node2.setCapacityProvider(capacity2);
+    node2.setup();
+
+    assert node1.capacity() == 4;
+    assert node2.capacity() == 0;
+    assert node1.put("a", 1);
+    assert !node2.put("b", 1);
+    // 设置了动态容量时，被拒绝的元素仍然执行rateLimitingCallback
+    assert rateLimited.get() == 1;
+
+    // 续约后 node-1 收缩，node-2 获得容量
+    TimeUnit.MILLISECONDS.sleep(400);
+    log.info("node1: {}, node2: {}", node1.capacity(), node2.capacity());
+    assert node1.capacity() + node2.capacity() <= 4;
+    assert node2.capacity() > 0;
+    assert node2.put("b", 1);
+    capacity2.stop();
+    assert node2.capacity() == 0;
+    node1.close();
+    // 停止后续约线程不会重新注册节点
+    TimeUnit.MILLISECONDS.sleep(200);
+    assert capacity2.getLease() == null;
+    assert node2.capacity() == 0;
+    assert coordinator.allocated() == 0;
+  }
+}
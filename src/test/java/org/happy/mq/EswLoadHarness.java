@@ -0,0 +1,341 @@
+package org.happy.mq;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import lombok.extern.slf4j.Slf4j;
+import org.happy.esw.ExpireSlidingWindow;
+
+/**
+ * EswMessageQueue的持续压测工具，用于按生产环境的速率长时间运行，根据数据确定窗口大小与存活时长。
+ * <p>
+ * 生产者按固定到达速率开环投递（open-loop），每条消息的耗时从其计划到达时间开始计算，
+ * 投递被阻塞时不会少算排队时间（避免coordinated omission）。
+ * <p>
+ * 通过系统属性配置，例如：
+ * <pre>
+ *   java -Desw.load.rate=200000 -Desw.load.duration=300 -Desw.load.latency=exp:2 -Desw.load.failureRate=0.001 \
+ *     -cp target/classes:target/test-classes:... org.happy.mq.EswLoadHarness
+ * </pre>
+ * <ul>
+ *   <li>esw.load.producers：生产者线程数，默认4</li>
+ *   <li>esw.load.consumers：消费者线程数，默认16</li>
+ *   <li>esw.load.rate：总到达速率（条/秒），默认20000</li>
+ *   <li>esw.load.duration：运行时长（秒），默认60</li>
+ *   <li>esw.load.windowSize：窗口大小，默认1000</li>
+ *   <li>esw.load.queueSize：队列大小，默认与窗口大小相同</li>
+ *   <li>esw.load.aliveMillis：窗口中元素的存活时长（毫秒），默认1000</li>
+ *   <li>esw.load.latency：发送耗时分布（毫秒），fixed:2、uniform:1:5、exp:2（指数分布，参数为均值），默认exp:0.5</li>
+ *   <li>esw.load.failureRate：发送失败率，失败的消息占用窗口直至过期，默认0</li>
+ *   <li>esw.load.waitStrategy：设置时使用内置的{@link RingBufferQueue}及对应的等待策略（SPIN、YIELD、PARK），
+ *   默认使用LinkedBlockingQueue</li>
+ * </ul>
+ * 每秒输出一次区间统计，结束时输出消息在窗口中停留时长（计划到达至发送成功）与投递时长（计划到达至进入队列）的百分位数。
+ * 窗口满时每条被拒绝的消息都会输出INFO日志，高速率压测时建议将org.happy.esw的日志级别调整为WARN。
+ *
+ * @author huangzhonghui
+ */
+@Slf4j
+public class EswLoadHarness {
+
+  private final int producers = Integer.getInteger("esw.load.producers", 4);
+  private final int consumers = Integer.getInteger("esw.load.consumers", 16);
+  private final long rate = Long.getLong("esw.load.rate", 20000L);
+  private final long durationSeconds = Long.getLong("esw.load.duration", 60L);
+  private final int windowSize = Integer.getInteger("esw.load.windowSize", 1000);
+  private final int queueSize = Integer.getInteger("esw.load.queueSize", windowSize);
+  private final long aliveMillis = Long.getLong("esw.load.aliveMillis", 1000L);
+  private final String latency = System.getProperty("esw.load.latency", "exp:0.5");
+  private final double failureRate = Double.parseDouble(System.getProperty("esw.load.failureRate", "0"));
+  private final String waitStrategy = System.getProperty("esw.load.waitStrategy");
+  /**
+   * 发送耗时分布及其参数（毫秒），启动时解析一次，避免在被测的消费线程中解析
+   */
+  private final String latencyDistribution;
+  private final double latencyFirst;
+  private final double latencySecond;
+
+  private final LongAdder offered = new LongAdder();
+  private final LongAdder sent = new LongAdder();
+  private final LongAdder failed = new LongAdder();
+  private final LongAdder rejected = new LongAdder();
+  private final LongAdder expired = new LongAdder();
+  /**
+   * 计划到达至发送成功
+   */
+  private final Histogram timeInWindow = new Histogram();
+  /**
+   * 计划到达至进入队列
+   */
+  private final Histogram putLatency = new Histogram();
+
+  private volatile boolean running = true;
+
+  EswLoadHarness() {
+    String[] parts = latency.split(":");
+    this.latencyDistribution = parts[0];
+    switch (parts[0]) {
+      case "fixed":
+      case "exp":
+        this.latencyFirst = Double.parseDouble(parts[1]);
+        this.latencySecond = 0;
+        break;
+      case "uniform":
+        this.latencyFirst = Double.parseDouble(parts[1]);
+        this.latencySecond = Double.parseDouble(parts[2]);
+        break;
+      default:
+        throw new IllegalArgumentException("不支持的发送耗时分布: " + latency);
+    }
+  }
+
+  public static void main(String[] args) throws Exception {
+    new EswLoadHarness().run();
+  }
+
+  void run() throws Exception {
+    log.info("producers={}, consumers={}, rate={}/s, duration={}s, windowSize={}, queueSize={}, aliveMillis={}, "
+            + "latency={}, failureRate={}, waitStrategy={}", producers, consumers, rate, durationSeconds, windowSize,
+        queueSize, aliveMillis, latency, failureRate, waitStrategy);
+    ExpireSlidingWindow<String, LoadMessage> esw = new ExpireSlidingWindow<>(
+        "LOAD",
+        windowSize,
+        aliveMillis,
+        TimeUnit.MILLISECONDS,
+        (key, value) -> expired.increment(),
+        (key, value) -> {
+          // 担保处理在put线程中同步执行，被拒绝的消息以put的返回值统计
+        }
+    );
+    esw.setup();
+    BlockingQueue<LoadMessage> queue = waitStrategy == null
+        ? new LinkedBlockingQueue<>(queueSize)
+        : new RingBufferQueue<>(queueSize, WaitStrategy.valueOf(waitStrategy));
+    EswMessageQueue<String, LoadMessage> eswMQ = new EswMessageQueue<>(queue, esw);
+
+    List<Thread> threads = new ArrayList<>();
+    for (int i = 0; i < consumers; i++) {
+      threads.add(start("load-consumer-" + i, () -> consume(eswMQ)));
+    }
+    long start = System.nanoTime();
+    long intervalNanos = TimeUnit.SECONDS.toNanos(1) * producers / rate;
+    for (int i = 0; i < producers; i++) {
+      int producer = i;
+      // 各生产者错开启动，使合并后的到达间隔均匀
+      long first = start + intervalNanos * producer / producers;
+      threads.add(start("load-producer-" + i, () -> produce(eswMQ, producer, first, intervalNanos)));
+    }
+
+    Snapshot last = snapshot();
+    for (long second = 1; second <= durationSeconds; second++) {
+      LockSupport.parkNanos(start + TimeUnit.SECONDS.toNanos(second) - System.nanoTime());
+      Snapshot current = snapshot();
+      log.info(String.format(Locale.ROOT,
+          "[%4ds] offered=%d/s sent=%d/s failed=%d/s rejected=%d/s expired=%d/s eswSize=%d queueSize=%d",
+          second, current.offered - last.offered, current.sent - last.sent, current.failed - last.failed,
+          current.rejected - last.rejected, current.expired - last.expired, eswMQ.eswSize(), eswMQ.queueSize()));
+      last = current;
+    }
+    running = false;
+    long elapsed = System.nanoTime() - start;
+    eswMQ.close(aliveMillis, TimeUnit.MILLISECONDS);
+    for (Thread thread : threads) {
+      thread.interrupt();
+      thread.join(TimeUnit.SECONDS.toMillis(1));
+    }
+    report(elapsed, esw);
+  }
+
+  private void produce(EswMessageQueue<String, LoadMessage> eswMQ, int producer, long first, long intervalNanos) {
+    long sequence = 0;
+    while (running) {
+      long intended = first + sequence * intervalNanos;
+      long wait = intended - System.nanoTime();
+      if (wait > 0) {
+        LockSupport.parkNanos(wait);
+        continue;
+      }
+      // 落后于计划时不等待，也不跳过，耗时从计划到达时间算起
+      LoadMessage message = new LoadMessage(producer + "-" + sequence, intended);
+      sequence++;
+      offered.increment();
+      try {
+        // 窗口已满或去重拒绝的消息不计入投递时长
+        if (eswMQ.put(message)) {
+          putLatency.record(System.nanoTime() - intended);
+        } else {
+          rejected.increment();
+        }
+      } catch (InterruptedException | IllegalStateException e) {
+        return;
+      }
+    }
+  }
+
+  private void consume(EswMessageQueue<String, LoadMessage> eswMQ) {
+    MessageSender<LoadMessage> sender = message -> {
+      long sleep = sampleLatencyNanos();
+      if (sleep > 0) {
+        LockSupport.parkNanos(sleep);
+      }
+      if (failureRate > 0 && ThreadLocalRandom.current().nextDouble() < failureRate) {
+        failed.increment();
+        return 0;
+      }
+      sent.increment();
+      timeInWindow.record(System.nanoTime() - message.intended);
+      return 1;
+    };
+    while (!Thread.currentThread().isInterrupted()) {
+      try {
+        eswMQ.takeAndSend(sender, 1);
+      } catch (InterruptedException e) {
+        return;
+      } catch (Exception e) {
+        log.error("takeAndSend() cause unknown exception", e);
+      }
+    }
+  }
+
+  private long sampleLatencyNanos() {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    double millis;
+    switch (latencyDistribution) {
+      case "fixed":
+        millis = latencyFirst;
+        break;
+      case "uniform":
+        millis = latencyFirst + random.nextDouble() * (latencySecond - latencyFirst);
+        break;
+      default:
+        // exp
+        millis = -Math.log(1 - random.nextDouble()) * latencyFirst;
+        break;
+    }
+    return (long) (millis * 1_000_000L);
+  }
+
+  private Snapshot snapshot() {
+    return new Snapshot(offered.sum(), sent.sum(), failed.sum(), rejected.sum(), expired.sum());
+  }
+
+  private void report(long elapsedNanos, ExpireSlidingWindow<String, LoadMessage> esw) {
+    double seconds = elapsedNanos / 1e9;
+    log.info(String.format(Locale.ROOT, "offered=%d (%.0f/s), sent=%d (%.0f/s), failed=%d, rejected=%d, expired=%d",
+        offered.sum(), offered.sum() / seconds, sent.sum(), sent.sum() / seconds, failed.sum(), rejected.sum(),
+        expired.sum()));
+    log.info("time-in-window (ms): {}", timeInWindow.summary());
+    log.info("put latency    (ms): {}", putLatency.summary());
+    log.info("{}", esw.getExpireStats());
+  }
+
+  private static Thread start(String name, Runnable task) {
+    Thread thread = new Thread(task, name);
+    thread.setDaemon(true);
+    thread.start();
+    return thread;
+  }
+
+  static class LoadMessage implements KvMessage<String> {
+
+    final String key;
+    /**
+     * 计划到达时间，System.nanoTime()
+     */
+    final long intended;
+
+    LoadMessage(String key, long intended) {
+      this.key = key;
+      this.intended = intended;
+    }
+
+    @Override
+    public String getKey() {
+      return key;
+    }
+  }
+
+  static class Snapshot {
+
+    final long offered;
+    final long sent;
+    final long failed;
+    final long rejected;
+    final long expired;
+
+    Snapshot(long offered, long sent, long failed, long rejected, long expired) {
+      this.offered = offered;
+      this.sent = sent;
+      this.failed = failed;
+      this.rejected = rejected;
+      this.expired = expired;
+    }
+  }
+
+  /**
+   * 对数线性分桶的并发直方图，单位微秒，每个2的幂区间分为64个桶，相对误差约1.6%
+   */
+  static class Histogram {
+
+    private static final int SUB_BUCKETS = 64;
+    private final AtomicLongArray counts = new AtomicLongArray((64 - 5) * SUB_BUCKETS);
+    private final AtomicLong max = new AtomicLong(0);
+    private final LongAdder total = new LongAdder();
+
+    void record(long nanos) {
+      long micros = Math.max(0L, TimeUnit.NANOSECONDS.toMicros(nanos));
+      counts.incrementAndGet(index(micros));
+      total.increment();
+      long current;
+      while (micros > (current = max.get()) && !max.compareAndSet(current, micros)) {
+        // CAS失败重试
+      }
+    }
+
+    static int index(long value) {
+      if (value < SUB_BUCKETS) {
+        return (int) value;
+      }
+      int exponent = 63 - Long.numberOfLeadingZeros(value);
+      int sub = (int) (value >>> (exponent - 6)) & (SUB_BUCKETS - 1);
+      return (exponent - 5) * SUB_BUCKETS + sub;
+    }
+
+    static long valueOf(int index) {
+      if (index < SUB_BUCKETS) {
+        return index;
+      }
+      int exponent = index / SUB_BUCKETS + 5;
+      return (long) (SUB_BUCKETS + index % SUB_BUCKETS) << (exponent - 6);
+    }
+
+    long percentile(double p) {
+      long count = total.sum();
+      if (count == 0) {
+        return 0;
+      }
+      long target = (long) Math.ceil(p * count);
+      long cumulative = 0;
+      for (int i = 0; i < counts.length(); i++) {
+        cumulative += counts.get(i);
+        if (cumulative >= target) {
+          return valueOf(i);
+        }
+      }
+      return max.get();
+    }
+
+    String summary() {
+      return String.format(Locale.ROOT, "count=%d p50=%.3f p99=%.3f p999=%.3f max=%.3f", total.sum(),
+          percentile(0.5) / 1000.0, percentile(0.99) / 1000.0, percentile(0.999) / 1000.0, max.get() / 1000.0);
+    }
+  }
+}
@@ -1,10 +1,15 @@
 package org.happy.mq;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.ToString;
@@ -12,6 +17,8 @@ import lombok.extern.slf4j.Slf4j;
 import org.happy.esw.ExpireSlidingWindow;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import org.reactivestreams.Subscriber;
+import org.reactivestreams.Subscription;
 
 @Slf4j
 class EswMessageQueueTest {
@@ -90,7 +97,7 @@ class EswMessageQueueTest {
     id = "06";
     phoneNumber = "186000000" + id;
     content = "hello world " + phoneNumber;
-    eswMQ.put(new Message<>(id, phoneNumber, content));
+    assert !eswMQ.put(new Message<>(id, phoneNumber, content));
     TimeUnit.MILLISECONDS.sleep(20);
     assert eswMQ.queueSize() == 5;
     assert eswMQ.eswSize() == 5;
@@ -155,6 +162,186 @@ class EswMessageQueueTest {
     TimeUnit.MILLISECONDS.sleep(1000);
   }
 
+  @Test
+  void publisherAndSubscriber() {
+    // 上游按需求生成20条消息
+    AtomicInteger emitted = new AtomicInteger(0);
+    Subscriber<Message<String>> inbound = eswMQ.subscriber();
+    inbound.onSubscribe(new Subscription() {
+      @Override
+      public void request(long n) {
+        for (long i = 0; i < n && emitted.get() < 20; i++) {
+          String id = String.valueOf(emitted.incrementAndGet());
+          inbound.onNext(new Message<>(id, "186000000" + id, "hello world"));
+        }
+      }
+
+      @Override
+      public void cancel() {
+      }
+    });
+    // 只请求了窗口空闲槽位数量的消息
+    assert emitted.get() == 5;
+    assert eswMQ.eswSize() == 5;
+    assert eswMQ.queueSize() == 5;
+
+    List<Message<String>> sent = new ArrayList<>();
+    eswMQ.publisher().subscribe(new Subscriber<Message<String>>() {
+      Subscription subscription;
+
+      @Override
+      public void onSubscribe(Subscription s) {
+        subscription = s;
+        s.request(1);
+      }
+
+      @Override
+      public void onNext(Message<String> message) {
+        sent.add(message);
+        // 发送成功，释放窗口后上游继续投递
+        eswMQ.ack(message.getKey());
+        subscription.request(1);
+      }
+
+      @Override
+      public void onError(Throwable t) {
+        log.error("onError", t);
+      }
+
+      @Override
+      public void onComplete() {
+      }
+    });
+    assert emitted.get() == 20;
+    assert sent.size() == 20;
+    assert eswMQ.eswSize() == 0;
+    assert eswMQ.queueSize() == 0;
+  }
+
+  @Test
+  void subscriberWithFullQueue() throws Exception {
+    AtomicInteger emitted = new AtomicInteger(0);
+    Subscriber<Message<String>> inbound = eswMQ.subscriber();
+    inbound.onSubscribe(new Subscription() {
+      @Override
+      public void request(long n) {
+        for (long i = 0; i < n; i++) {
+          String id = String.valueOf(emitted.incrementAndGet());
+          inbound.onNext(new Message<>(id, "186000000" + id, "hello world"));
+        }
+      }
+
+      @Override
+      public void cancel() {
+      }
+    });
+    assert emitted.get() == 5;
+    assert eswMQ.queueSize() == 5;
+
+    // 窗口中消息过期，但队列只剩1个空间，只向上游请求1条
+    TimeUnit.MILLISECONDS.sleep(1200);
+    assert emitted.get() == 6;
+    assert eswMQ.queueSize() == 6;
+    assert eswMQ.eswSize() == 1;
+
+    // 队列已满，窗口中消息再次过期，过期调度线程不会阻塞在投递上
+    TimeUnit.MILLISECONDS.sleep(1200);
+    assert emitted.get() == 6;
+    assert eswMQ.eswSize() == 0;
+    assert esw.put("probe", new Message<>("probe", "18600000000", "hello world"));
+    TimeUnit.MILLISECONDS.sleep(1200);
+    assert !esw.containsKey("probe");
+
+    // 消息被取走后，队列有了空间，继续向上游请求
+    eswMQ.takeAndSend(message -> 1, 1);
+    assert emitted.get() == 7;
+    assert eswMQ.queueSize() == 6;
+  }
+
+  @Test
+  void subscriberCompleteWithPending() throws Exception {
+    for (int i = 1; i <= 5; i++) {
+      eswMQ.put(new Message<>("0" + i, "1860000000" + i, "hello world"));
+    }
+    TimeUnit.MILLISECONDS.sleep(1100);
+    // 窗口已空，队列只剩1个空间，上游收到request(1)但暂不投递
+    AtomicLong requested = new AtomicLong(0);
+    Subscriber<Message<String>> inbound = eswMQ.subscriber();
+    inbound.onSubscribe(new Subscription() {
+      @Override
+      public void request(long n) {
+        requested.addAndGet(n);
+      }
+
+      @Override
+      public void cancel() {
+      }
+    });
+    assert requested.get() == 1;
+
+    // 其他生产者先填满了队列，上游的消息暂存后上游结束
+    eswMQ.put(new Message<>("06", "18600000006", "hello world"));
+    inbound.onNext(new Message<>("u1", "18600000000", "hello world"));
+    inbound.onComplete();
+    assert !esw.containsKey("u1");
+
+    // 队列有了空间后，暂存的消息仍会投递，且不再向上游请求
+    eswMQ.takeAndSend(message -> 1, 1);
+    assert esw.containsKey("u1");
+    assert eswMQ.queueSize() == 6;
+    eswMQ.takeAndSend(message -> 1, 1);
+    assert requested.get() == 1;
+  }
+
+  @Test
+  void close() throws Exception {
+    eswMQ.put(new Message<>("01", "18600000001", "hello world"));
+    eswMQ.put(new Message<>("02", "18600000002", "hello world"));
+    consumer.execute(() -> {
+      try {
+        for (int i = 0; i < 2; i++) {
+          eswMQ.takeAndSend(message -> 1, 1);
+        }
+      } catch (Exception e) {
+        throw new RuntimeException(e);
+      }
+    });
+
+    // 等待消费者处理完队列与窗口中的消息
+    assert eswMQ.close(1, TimeUnit.SECONDS);
+    assert eswMQ.queueSize() == 0;
+    assert eswMQ.eswSize() == 0;
+    try {
+      eswMQ.put(new Message<>("03", "18600000003", "hello world"));
+      assert false;
+    } catch (IllegalStateException e) {
+      log.info("put after close: {}", e.getMessage());
+    }
+  }
+
+  @Test
+  void closeWithBlockedProducer() throws Exception {
+    for (int i = 1; i <= 5; i++) {
+      eswMQ.put(new Message<>("0" + i, "1860000000" + i, "hello world"));
+    }
+    // 窗口中消息过期后，队列被填满
+    TimeUnit.MILLISECONDS.sleep(1100);
+    eswMQ.put(new Message<>("06", "18600000006", "hello world"));
+    assert eswMQ.queueSize() == 6;
+    Future<?> blocked = producer.submit(() -> {
+      eswMQ.put(new Message<>("07", "18600000007", "hello world"));
+      return null;
+    });
+    TimeUnit.MILLISECONDS.sleep(50);
+    assert !blocked.isDone();
+
+    // 关闭时唤醒阻塞的生产者，其消息不会残留在已关闭的队列中
+    assert !eswMQ.close(100, TimeUnit.MILLISECONDS);
+    blocked.get(1, TimeUnit.SECONDS);
+    assert eswMQ.queueSize() == 0;
+    assert eswMQ.eswSize() == 0;
+  }
+
   @Getter
   @Setter
   @ToString
@@ -0,0 +1,111 @@
+package org.happy.mq;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.extern.slf4j.Slf4j;
+import org.happy.esw.ExpireSlidingWindow;
+import org.happy.mq.EswMessageQueueTest.Message;
+import org.junit.jupiter.api.Test;
+
+@Slf4j
+class RingBufferQueueTest {
+
+  @Test
+  void offerAndPoll() throws InterruptedException {
+    RingBufferQueue<Integer> queue = new RingBufferQueue<>(5, WaitStrategy.PARK);
+    // 容量向上取整为2的幂
+    assert queue.capacity() == 8;
+    for (int i = 0; i < 8; i++) {
+      assert queue.offer(i);
+    }
+    assert !queue.offer(8);
+    assert !queue.offer(8, 10, TimeUnit.MILLISECONDS);
+    assert queue.size() == 8;
+    assert queue.remainingCapacity() == 0;
+    assert queue.peek() == 0;
+    assert queue.contains(7);
+    // 不支持删除队列中间的元素
+    try {
+      queue.remove(Integer.valueOf(3));
+      assert false;
+    } catch (UnsupportedOperationException e) {
+      log.info("remove(Object): {}", e.getMessage());
+    }
+    assert queue.size() == 8;
+
+    // FIFO
+    for (int i = 0; i < 8; i++) {
+      assert queue.poll() == i;
+    }
+    assert queue.poll() == null;
+    assert queue.poll(10, TimeUnit.MILLISECONDS) == null;
+    assert queue.isEmpty();
+  }
+
+  @Test
+  void concurrentProducersAndConsumers() throws Exception {
+    // SPIN要求线程数不超过CPU核数，这里只在核数足够时验证
+    List<WaitStrategy> strategies = new ArrayList<>();
+    strategies.add(WaitStrategy.PARK);
+    strategies.add(WaitStrategy.YIELD);
+    if (Runtime.getRuntime().availableProcessors() >= 8) {
+      strategies.add(WaitStrategy.SPIN);
+    }
+    for (WaitStrategy strategy : strategies) {
+      RingBufferQueue<Long> queue = new RingBufferQueue<>(64, strategy);
+      int producers = 4;
+      int consumers = 4;
+      int perProducer = 50_000;
+      ExecutorService executor = Executors.newFixedThreadPool(producers + consumers);
+      AtomicLong sum = new AtomicLong(0);
+      List<Future<?>> futures = new ArrayList<>();
+      for (int p = 0; p < producers; p++) {
+        futures.add(executor.submit(() -> {
+          for (long i = 1; i <= perProducer; i++) {
+            queue.put(i);
+          }
+          return null;
+        }));
+      }
+      for (int c = 0; c < consumers; c++) {
+        futures.add(executor.submit(() -> {
+          for (int i = 0; i < perProducer * producers / consumers; i++) {
+            sum.addAndGet(queue.take());
+          }
+          return null;
+        }));
+      }
+      for (Future<?> future : futures) {
+        future.get(30, TimeUnit.SECONDS);
+      }
+      executor.shutdown();
+      log.info("{}: sum = {}", strategy, sum.get());
+      assert sum.get() == (long) producers * perProducer * (perProducer + 1) / 2;
+      assert queue.isEmpty();
+    }
+  }
+
+  @Test
+  void eswMessageQueue() throws Exception {
+    ExpireSlidingWindow<String, Message<String>> esw = new ExpireSlidingWindow<>(
+        "RING", 5, 1, TimeUnit.SECONDS, null, (key, value) -> log.info("send to MQ : <{},{}> ", key, value));
+    EswMessageQueue<String, Message<String>> eswMQ = new EswMessageQueue<>(esw, WaitStrategy.PARK);
+    for (int i = 0; i < 6; i++) {
+      eswMQ.put(new Message<>(String.valueOf(i), "18600000000", "hello world"));
+    }
+    // 第6条进入担保机制
+    assert eswMQ.queueSize() == 5;
+    assert eswMQ.eswSize() == 5;
+    for (int i = 0; i < 5; i++) {
+      eswMQ.takeAndSend(message -> 1, 1);
+    }
+    assert eswMQ.queueSize() == 0;
+    assert eswMQ.eswSize() == 0;
+    eswMQ.close();
+  }
+}